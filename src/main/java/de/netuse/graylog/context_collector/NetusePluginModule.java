@@ -20,6 +20,7 @@ import com.google.inject.Binder;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.MapBinder;
 import de.netuse.graylog.context_collector.context.*;
+import de.netuse.graylog.context_collector.functions.ContextCollectFunction;
 import org.graylog.plugins.pipelineprocessor.ast.functions.Function;
 import org.graylog2.plugin.PluginModule;
 
@@ -28,10 +29,15 @@ public class NetusePluginModule extends PluginModule {
     protected void configure() {
         addMessageOutput(ContextCollectorOutput.class);
         bind(ContextCollectorCommunicationService.class).to(ContextCollectionCommunicationServiceImpl.class);
+        bind(KeyOwnership.class).asEagerSingleton();
+        bind(CollectionConfigurationRegistry.class).asEagerSingleton();
+        bind(ContextCollectorProcessor.class).asEagerSingleton();
         addPeriodical(ContextCollectorTimeoutCheck.class);
+        addPeriodical(ContextCollectorClusterHeartbeat.class);
         addMessageInput(ContextCollectorInput.class);
         addTransport("collection-transport", ContextCollectorTransport.class);
         addCodec("context-collector-message", ContextCollectorCodec.class);
+        addMessageProcessorFunction(ContextCollectFunction.NAME, ContextCollectFunction.class);
 
     }
 
@@ -23,9 +23,13 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
 import de.netuse.graylog.context_collector.context.CollectionConfiguration;
+import de.netuse.graylog.context_collector.context.IdScheme;
+import de.netuse.graylog.context_collector.context.QueueOverflowPolicy;
+import de.netuse.graylog.context_collector.context.UpdateMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -44,15 +48,110 @@ public abstract class PluginConfigurationV2 {
     @JsonProperty("collection_configurations")
     public abstract List<CollectionConfiguration> collectionConfigurations();
 
+    @JsonProperty("update_mode")
+    public abstract UpdateMode updateMode();
+
+    @JsonProperty("write_behind_flush_interval")
+    public abstract long writeBehindFlushInterval();
+
+    @JsonProperty("write_behind_buffer_size")
+    public abstract int writeBehindBufferSize();
+
+    @JsonProperty("id_scheme")
+    public abstract IdScheme idScheme();
+
+    @JsonProperty("cluster_mode")
+    public abstract boolean clusterMode();
+
+    @JsonProperty("queue_capacity")
+    public abstract int queueCapacity();
+
+    @JsonProperty("queue_overflow_policy")
+    public abstract QueueOverflowPolicy queueOverflowPolicy();
+
+    @JsonProperty("queue_offer_timeout")
+    public abstract long queueOfferTimeout();
+
+    @JsonProperty("journal_enabled")
+    public abstract boolean journalEnabled();
+
+    @JsonProperty("journal_path")
+    public abstract String journalPath();
+
+    @JsonProperty("journal_segment_size")
+    public abstract int journalSegmentSize();
+
+    @JsonProperty("journal_max_segments")
+    public abstract int journalMaxSegments();
+
+    @JsonProperty("processing_lanes")
+    public abstract int processingLanes();
+
+    /*
+    Settings added after the first release are optional in the stored configuration,
+    missing values fall back to the defaults set in builder().
+     */
     @JsonCreator
     public static PluginConfigurationV2 create(@JsonProperty("collection_configurations") List<CollectionConfiguration> collectionConfigrations,
                                                @JsonProperty("collection_configurations_path") String collectionConfigrationsPath,
-                                               @JsonProperty("load_configuration_from_file") boolean loadConfigurationFromFile) {
-        return builder()
+                                               @JsonProperty("load_configuration_from_file") boolean loadConfigurationFromFile,
+                                               @JsonProperty("update_mode") @Nullable UpdateMode updateMode,
+                                               @JsonProperty("write_behind_flush_interval") @Nullable Long writeBehindFlushInterval,
+                                               @JsonProperty("write_behind_buffer_size") @Nullable Integer writeBehindBufferSize,
+                                               @JsonProperty("id_scheme") @Nullable IdScheme idScheme,
+                                               @JsonProperty("cluster_mode") @Nullable Boolean clusterMode,
+                                               @JsonProperty("queue_capacity") @Nullable Integer queueCapacity,
+                                               @JsonProperty("queue_overflow_policy") @Nullable QueueOverflowPolicy queueOverflowPolicy,
+                                               @JsonProperty("queue_offer_timeout") @Nullable Long queueOfferTimeout,
+                                               @JsonProperty("journal_enabled") @Nullable Boolean journalEnabled,
+                                               @JsonProperty("journal_path") @Nullable String journalPath,
+                                               @JsonProperty("journal_segment_size") @Nullable Integer journalSegmentSize,
+                                               @JsonProperty("journal_max_segments") @Nullable Integer journalMaxSegments,
+                                               @JsonProperty("processing_lanes") @Nullable Integer processingLanes) {
+        final Builder builder = builder()
                 .collectionConfigurations(collectionConfigrations)
                 .collectionConfigurationsPath(collectionConfigrationsPath)
-                .loadConfigurationFromFile(loadConfigurationFromFile)
-                .build();
+                .loadConfigurationFromFile(loadConfigurationFromFile);
+        if (updateMode != null) {
+            builder.updateMode(updateMode);
+        }
+        if (writeBehindFlushInterval != null) {
+            builder.writeBehindFlushInterval(writeBehindFlushInterval);
+        }
+        if (writeBehindBufferSize != null) {
+            builder.writeBehindBufferSize(writeBehindBufferSize);
+        }
+        if (idScheme != null) {
+            builder.idScheme(idScheme);
+        }
+        if (clusterMode != null) {
+            builder.clusterMode(clusterMode);
+        }
+        if (queueCapacity != null) {
+            builder.queueCapacity(queueCapacity);
+        }
+        if (queueOverflowPolicy != null) {
+            builder.queueOverflowPolicy(queueOverflowPolicy);
+        }
+        if (queueOfferTimeout != null) {
+            builder.queueOfferTimeout(queueOfferTimeout);
+        }
+        if (journalEnabled != null) {
+            builder.journalEnabled(journalEnabled);
+        }
+        if (journalPath != null) {
+            builder.journalPath(journalPath);
+        }
+        if (journalSegmentSize != null) {
+            builder.journalSegmentSize(journalSegmentSize);
+        }
+        if (journalMaxSegments != null) {
+            builder.journalMaxSegments(journalMaxSegments);
+        }
+        if (processingLanes != null) {
+            builder.processingLanes(processingLanes);
+        }
+        return builder.build();
     }
 
     public static PluginConfigurationV2 createDefault() {
@@ -64,7 +163,20 @@ public abstract class PluginConfigurationV2 {
     }
 
     static Builder builder() {
-        return new AutoValue_PluginConfigurationV2.Builder();
+        return new AutoValue_PluginConfigurationV2.Builder()
+                .updateMode(UpdateMode.READ_MODIFY_WRITE)
+                .writeBehindFlushInterval(1000)
+                .writeBehindBufferSize(10000)
+                .idScheme(IdScheme.SHA256_HEX)
+                .clusterMode(false)
+                .queueCapacity(1024)
+                .queueOverflowPolicy(QueueOverflowPolicy.WRITE_BACK)
+                .queueOfferTimeout(1000)
+                .journalEnabled(false)
+                .journalPath("/var/lib/graylog-server/context-collector-journal")
+                .journalSegmentSize(64)
+                .journalMaxSegments(16)
+                .processingLanes(1);
     }
 
     public abstract Builder toBuilder();
@@ -74,6 +186,19 @@ public abstract class PluginConfigurationV2 {
         public abstract Builder loadConfigurationFromFile(boolean loadConfigurationFromFile);
         public abstract Builder collectionConfigurations(List<CollectionConfiguration> collectionConfigurations);
         public abstract Builder collectionConfigurationsPath(String collectionConfigurationsPath);
+        public abstract Builder updateMode(UpdateMode updateMode);
+        public abstract Builder writeBehindFlushInterval(long writeBehindFlushInterval);
+        public abstract Builder writeBehindBufferSize(int writeBehindBufferSize);
+        public abstract Builder idScheme(IdScheme idScheme);
+        public abstract Builder clusterMode(boolean clusterMode);
+        public abstract Builder queueCapacity(int queueCapacity);
+        public abstract Builder queueOverflowPolicy(QueueOverflowPolicy queueOverflowPolicy);
+        public abstract Builder queueOfferTimeout(long queueOfferTimeout);
+        public abstract Builder journalEnabled(boolean journalEnabled);
+        public abstract Builder journalPath(String journalPath);
+        public abstract Builder journalSegmentSize(int journalSegmentSize);
+        public abstract Builder journalMaxSegments(int journalMaxSegments);
+        public abstract Builder processingLanes(int processingLanes);
 
         public abstract PluginConfigurationV2 build();
     }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.Nullable;
+
+/*
+@desc How the values of a value field are combined into the collected field.
+Every mode keeps a partial value that can be combined with other partial values, so messages, batches and the
+updates of several nodes merge in any grouping. The database applies the same combination with atomic operators:
+LAST with $set, FIRST with $setOnInsert or a set if missing, COUNT and SUM with $inc, MIN and MAX with $min and $max.
+ */
+public enum Aggregation {
+    @JsonProperty("last")
+    LAST,
+    @JsonProperty("first")
+    FIRST,
+    @JsonProperty("count")
+    COUNT,
+    @JsonProperty("sum")
+    SUM,
+    @JsonProperty("min")
+    MIN,
+    @JsonProperty("max")
+    MAX;
+
+    /*
+    Partial value of a single message value, null if the value does not take part, like text in a sum.
+     */
+    @Nullable
+    public Object initial(Object value) {
+        switch (this) {
+            case COUNT:
+                return 1L;
+            case SUM:
+                return toNumber(value);
+            default:
+                return value;
+        }
+    }
+
+    /*
+    Combines two partial values, earlier is the one seen first.
+     */
+    public Object combine(Object earlier, Object later) {
+        switch (this) {
+            case FIRST:
+                return earlier;
+            case COUNT:
+            case SUM:
+                // A value stored before the field was aggregated is replaced.
+                if (!(earlier instanceof Number) || !(later instanceof Number)) {
+                    return later instanceof Number ? later : earlier;
+                }
+                return add((Number) earlier, (Number) later);
+            case MIN:
+                return compare(earlier, later) <= 0 ? earlier : later;
+            case MAX:
+                return compare(earlier, later) >= 0 ? earlier : later;
+            default:
+                return later;
+        }
+    }
+
+    @Nullable
+    private static Number toNumber(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        try {
+            String text = value.toString().trim();
+            return text.contains(".") || text.contains("e") || text.contains("E") ? Double.valueOf(text) : Long.valueOf(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Number add(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return a.longValue() + b.longValue();
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /*
+    Numbers compare by value and sort before other values, like in MongoDB. Other values compare if they are of the same class.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof Number || b instanceof Number) {
+            return a instanceof Number ? -1 : 1;
+        }
+        if (a instanceof Comparable && a.getClass().equals(b.getClass())) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return 0;
+    }
+}
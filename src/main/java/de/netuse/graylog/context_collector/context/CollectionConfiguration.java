@@ -23,7 +23,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
 import org.graylog.autovalue.WithBeanGetter;
 
+import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 
 /*
@@ -55,6 +58,37 @@ public abstract class CollectionConfiguration {
     @JsonProperty
     public abstract boolean enabled();
 
+    // Optional, overrides timeout with millisecond precision when greater than 0.
+    @JsonProperty
+    public abstract long timeout_millis();
+
+    // Optional, aggregation per value field. Fields without one keep the last value.
+    @JsonProperty
+    public abstract Map<String, Aggregation> aggregations();
+
+    // Optional, maximum number of open items, 0 is unlimited.
+    @JsonProperty
+    public abstract long max_open_items();
+
+    @JsonProperty
+    public abstract OpenItemsPolicy open_items_policy();
+
+    // Optional, an item matching any of the rules is complete even if value fields are missing.
+    @JsonProperty
+    public abstract List<CompletionRule> completion_rules();
+
+    // Optional, seconds after collection_start at which an item is emitted even if it keeps receiving messages, 0 is unlimited.
+    @JsonProperty
+    public abstract long max_lifetime();
+
+    // Optional, seconds between intermediate emissions of an open item, 0 disables snapshots.
+    @JsonProperty
+    public abstract long snapshot_interval();
+
+    // A resetting snapshot closes the item, the next message starts a new one. Otherwise the item keeps collecting.
+    @JsonProperty
+    public abstract boolean snapshot_reset();
+
     @JsonCreator
     public static CollectionConfiguration create(@JsonProperty("type") String type,
                                                      @JsonProperty("name") String name,
@@ -62,8 +96,16 @@ public abstract class CollectionConfiguration {
                                                      @JsonProperty("key_fields") List<String> key_fields,
                                                      @JsonProperty("value_fields") List<String> value_fields,
                                                      @JsonProperty("drop_incomplete") boolean drop_incomplete,
-                                                     @JsonProperty("enabled") boolean enabled) {
-        return builder()
+                                                     @JsonProperty("enabled") boolean enabled,
+                                                     @JsonProperty("timeout_millis") @Nullable Long timeout_millis,
+                                                     @JsonProperty("aggregations") @Nullable Map<String, Aggregation> aggregations,
+                                                     @JsonProperty("max_open_items") @Nullable Long max_open_items,
+                                                     @JsonProperty("open_items_policy") @Nullable OpenItemsPolicy open_items_policy,
+                                                     @JsonProperty("completion_rules") @Nullable List<CompletionRule> completion_rules,
+                                                     @JsonProperty("max_lifetime") @Nullable Long max_lifetime,
+                                                     @JsonProperty("snapshot_interval") @Nullable Long snapshot_interval,
+                                                     @JsonProperty("snapshot_reset") @Nullable Boolean snapshot_reset) {
+        CollectionConfiguration configuration = builder()
                 .type(type)
                 .name(name)
                 .timeout(timeout)
@@ -71,7 +113,19 @@ public abstract class CollectionConfiguration {
                 .value_fields(value_fields)
                 .drop_incomplete(drop_incomplete)
                 .enabled(enabled)
+                .timeout_millis(timeout_millis == null ? 0 : timeout_millis)
+                .aggregations(aggregations == null ? Collections.emptyMap() : aggregations)
+                .max_open_items(max_open_items == null ? 0 : max_open_items)
+                .open_items_policy(open_items_policy == null ? OpenItemsPolicy.REFUSE : open_items_policy)
+                .completion_rules(completion_rules == null ? Collections.emptyList() : completion_rules)
+                .max_lifetime(max_lifetime == null ? 0 : max_lifetime)
+                .snapshot_interval(snapshot_interval == null ? 0 : snapshot_interval)
+                .snapshot_reset(snapshot_reset != null && snapshot_reset)
                 .build();
+        for (CompletionRule rule : configuration.completion_rules()) {
+            rule.checkFields(configuration.key_fields(), configuration.value_fields());
+        }
+        return configuration;
     }
 
     public static Builder builder() {
@@ -89,13 +143,105 @@ public abstract class CollectionConfiguration {
         public abstract Builder value_fields(List<String> value_fields);
         public abstract Builder drop_incomplete(boolean drop_incomplete);
         public abstract Builder enabled(boolean enabled);
+        public abstract Builder timeout_millis(long timeout_millis);
+        public abstract Builder aggregations(Map<String, Aggregation> aggregations);
+        public abstract Builder max_open_items(long max_open_items);
+        public abstract Builder open_items_policy(OpenItemsPolicy open_items_policy);
+        public abstract Builder completion_rules(List<CompletionRule> completion_rules);
+        public abstract Builder max_lifetime(long max_lifetime);
+        public abstract Builder snapshot_interval(long snapshot_interval);
+        public abstract Builder snapshot_reset(boolean snapshot_reset);
 
         public abstract CollectionConfiguration build();
     }
 
+    public long timeoutMillis() {
+        return timeout_millis() > 0 ? timeout_millis() : timeout() * 1000L;
+    }
+
+    /*
+    Timeout for invalid_after, which is stored in epoch seconds. Rounded up, so the TimeoutCheck never expires an item early.
+     */
+    public long timeoutSeconds() {
+        return (timeoutMillis() + 999) / 1000;
+    }
+
+    /*
+    Seconds after collection_start at which an item is closed, 0 is unlimited. A resetting snapshot closes
+    the item just like the maximum lifetime.
+     */
+    public long lifetimeSeconds() {
+        long lifetime = max_lifetime();
+        if (snapshot_interval() > 0 && snapshot_reset() && (lifetime <= 0 || snapshot_interval() < lifetime)) {
+            lifetime = snapshot_interval();
+        }
+        return Math.max(0, lifetime);
+    }
+
+    public boolean keepsSnapshots() {
+        return snapshot_interval() > 0 && !snapshot_reset();
+    }
+
+    public boolean limitsOpenItems() {
+        return max_open_items() > 0;
+    }
+
+    public Aggregation aggregation(String field) {
+        if (aggregations().isEmpty() || key_fields().contains(field)) {
+            return Aggregation.LAST;
+        }
+        return aggregations().getOrDefault(field, Aggregation.LAST);
+    }
+
+    /*
+    True if a field is counted or summed, applying the same message twice changes the item then.
+     */
+    public boolean counts() {
+        return aggregations().containsValue(Aggregation.COUNT) || aggregations().containsValue(Aggregation.SUM);
+    }
+
+    /*
+    Merges the partial values of one item into the target, following the aggregation of each field.
+     */
+    public void mergeFields(Map<String, Object> target, Map<String, Object> partial) {
+        if (aggregations().isEmpty()) {
+            target.putAll(partial);
+            return;
+        }
+        for (Map.Entry<String, Object> field : partial.entrySet()) {
+            if (field.getValue() == null) {
+                continue;
+            }
+            target.merge(field.getKey(), field.getValue(), aggregation(field.getKey())::combine);
+        }
+    }
+
+    /*
+    An item is complete when all value fields were collected or when it matches a completion rule.
+     */
+    public boolean isComplete(CollectionItem item) {
+        return isComplete(item.collected_fields());
+    }
+
+    public boolean isComplete(Map<String, Object> collected_fields) {
+        if (hasAllFields(collected_fields)) {
+            return true;
+        }
+        for (CompletionRule rule : completion_rules()) {
+            if (rule.matches(collected_fields)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean hasAllFields(CollectionItem item) {
+        return hasAllFields(item.collected_fields());
+    }
+
+    public boolean hasAllFields(Map<String, Object> collected_fields) {
         for (String field_name : this.value_fields()) {
-            if (!item.collected_fields().containsKey(field_name)){
+            if (!collected_fields.containsKey(field_name)){
                 return false;
             }
         }
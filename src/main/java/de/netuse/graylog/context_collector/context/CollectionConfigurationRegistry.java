@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.graylog2.cluster.ClusterConfigChangedEvent;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.graylog2.shared.bindings.providers.ObjectMapperProvider;
+import org.graylog2.shared.utilities.AutoValueUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/*
+@desc Node wide registry for the plugin configuration, shared by the processor and the TimeoutCheck.
+The configuration is loaded once and reloaded on ClusterConfigChangedEvent. When it is read from file,
+the modification time of the file is checked every few seconds and the file is only parsed again after it changed.
+Readers get an immutable ConfigurationSnapshot. A reload keeps the compiled plans of unchanged configurations,
+and when nothing changed at all the current snapshot stays in place.
+ */
+@Singleton
+public class CollectionConfigurationRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionConfigurationRegistry.class);
+    private static final long FILE_CHECK_INTERVAL_SECONDS = 5;
+
+    private final ClusterConfigService clusterConfigService;
+    private final ObjectMapper mapper = new ObjectMapperProvider().get();
+    private final List<Consumer<ConfigurationSnapshot>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService fileWatcher;
+    private volatile ConfigurationSnapshot snapshot;
+    private volatile FileTime fileModified;
+
+    @Inject
+    public CollectionConfigurationRegistry(final ClusterConfigService clusterConfigService, final EventBus serverEventBus) {
+        this.clusterConfigService = clusterConfigService;
+        this.snapshot = new ConfigurationSnapshot(0, PluginConfigurationV2.createDefault(), new ArrayList<>(),
+                new ConfigurationIndex(new ArrayList<>()));
+        reload();
+        serverEventBus.register(this);
+
+        this.fileWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("context-collector-config-watcher-%d")
+                .build());
+        this.fileWatcher.scheduleWithFixedDelay(this::checkFile, FILE_CHECK_INTERVAL_SECONDS, FILE_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public ConfigurationSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /*
+    The listener is called with the current snapshot right away and after every change.
+     */
+    public void addListener(Consumer<ConfigurationSnapshot> listener) {
+        listeners.add(listener);
+        listener.accept(snapshot);
+    }
+
+    public void removeListener(Consumer<ConfigurationSnapshot> listener) {
+        listeners.remove(listener);
+    }
+
+    @Subscribe
+    public void handleUpdatedClusterConfig(ClusterConfigChangedEvent clusterConfigChangedEvent) {
+        if (!clusterConfigChangedEvent.type().equals(AutoValueUtils.getCanonicalName((PluginConfigurationV2.class)))) {
+            return;
+        }
+        LOG.info("Config changed, reload configuration");
+        reload();
+    }
+
+    private void checkFile() {
+        try {
+            PluginConfigurationV2 pluginConfiguration = snapshot.pluginConfiguration();
+            if (!pluginConfiguration.loadConfigurationFromFile()) {
+                return;
+            }
+            FileTime modified = Files.getLastModifiedTime(Paths.get(pluginConfiguration.collectionConfigurationsPath()));
+            if (!modified.equals(fileModified)) {
+                LOG.info("Configuration file changed, reload configuration");
+                reload();
+            }
+        } catch (Exception e) {
+            LOG.error("Unable to check configuration file: {}", e.getMessage(), e);
+        }
+    }
+
+    synchronized void reload() {
+        final PluginConfigurationV2 pluginConfiguration = clusterConfigService.getOrDefault(PluginConfigurationV2.class, PluginConfigurationV2.createDefault());
+        final List<CollectionConfiguration> configurations;
+        try {
+            configurations = loadConfigurations(pluginConfiguration);
+        } catch (IOException e) {
+            LOG.error("Unable to load configuration, keeping the previous one", e.getMessage(), e);
+            return;
+        }
+
+        ConfigurationSnapshot previous = snapshot;
+        if (previous.version() > 0
+                && pluginConfiguration.equals(previous.pluginConfiguration())
+                && configurations.equals(previous.configurations())) {
+            return;
+        }
+
+        Map<CollectionConfiguration, CompiledConfiguration> compiled = new HashMap<>();
+        for (CompiledConfiguration plan : previous.index().configurations()) {
+            compiled.put(plan.configuration(), plan);
+        }
+        List<CompiledConfiguration> plans = new ArrayList<>(configurations.size());
+        int changed = 0;
+        for (CollectionConfiguration configuration : configurations) {
+            CompiledConfiguration plan = compiled.get(configuration);
+            if (plan == null) {
+                plan = new CompiledConfiguration(configuration);
+                changed++;
+            }
+            plans.add(plan);
+        }
+
+        ConfigurationSnapshot updated = new ConfigurationSnapshot(previous.version() + 1, pluginConfiguration,
+                configurations, new ConfigurationIndex(plans));
+        snapshot = updated;
+        LOG.info("Loaded configuration version " + updated.version() + ", " + changed + " of " + configurations.size() + " collections changed");
+
+        for (Consumer<ConfigurationSnapshot> listener : listeners) {
+            listener.accept(updated);
+        }
+    }
+
+    private List<CollectionConfiguration> loadConfigurations(PluginConfigurationV2 pluginConfiguration) throws IOException {
+        if (pluginConfiguration.loadConfigurationFromFile()) {
+            Path path = Paths.get(pluginConfiguration.collectionConfigurationsPath());
+            fileModified = Files.getLastModifiedTime(path);
+            return Arrays.asList(mapper.readValue(path.toFile(), CollectionConfiguration[].class))
+                    .stream().filter(c -> c.enabled()).collect(Collectors.toList());
+        }
+        fileModified = null;
+        return pluginConfiguration.collectionConfigurations()
+                .stream().filter(Objects::nonNull).filter(c -> c.enabled()).collect(Collectors.toList());
+    }
+}
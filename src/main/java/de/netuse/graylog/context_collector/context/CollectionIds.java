@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.bson.types.Binary;
+import org.joda.time.DateTime;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.Function;
+
+/*
+@desc Constructs CollectionItem ids from the key fields of a configuration.
+
+Compact ids encode the configuration name and every key field name and value with a type tag into a per thread buffer
+and hash it with a per thread digest, so no intermediate strings are built. Integral numbers share one encoding, as do
+DateTime and Date, so a value reads back from the database with the same id it was written with. Values of different
+types never share an id, unlike with SHA256_HEX which hashes their text: "123" and 123, or 1 and 1.0, are separate items.
+In Java a compact id is COMPACT_MARKER followed by one character per digest byte, which a Latin-1 string stores as the raw
+bytes, so ids are neither hex encoded nor decoded. The marker cannot start a SHA256_HEX id. In the database they are stored
+as 16 byte binary _id. Use display() to log them.
+ */
+public final class CollectionIds {
+    static final int COMPACT_ID_BYTES = 16;
+    static final byte COMPACT_MARKER = '~';
+    static final int COMPACT_ID_LENGTH = COMPACT_ID_BYTES + 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INTEGRAL = 2;
+    private static final byte TAG_FLOATING = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final byte TAG_DATE = 5;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(CollectionIds::newDigest);
+    private static final ThreadLocal<KeyEncoder> ENCODER = ThreadLocal.withInitial(KeyEncoder::new);
+
+    private CollectionIds() {
+    }
+
+    public static String construct(IdScheme scheme, CompiledConfiguration.Extraction extraction) {
+        return construct(scheme, extraction.configuration().name(), extraction.keyFields(), extraction.keyValues());
+    }
+
+    public static String construct(IdScheme scheme, CollectionConfiguration configuration, Function<String, Object> fields) {
+        String[] keys = configuration.key_fields().stream().sorted().toArray(String[]::new);
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = fields.apply(keys[i]);
+        }
+        return construct(scheme, configuration.name(), keys, values);
+    }
+
+    /*
+    Key fields have to be sorted, the values are in the same order.
+     */
+    static String construct(IdScheme scheme, String name, String[] keys, Object[] values) {
+        return scheme == IdScheme.COMPACT ? compact(name, keys, values) : sha256Hex(name, keys, values);
+    }
+
+    static String sha256Hex(String name, String[] keys, Object[] values) {
+        StringBuilder id = new StringBuilder(name);
+        for (int i = 0; i < keys.length; i++) {
+            id.append(keys[i]).append(values[i].toString());
+        }
+        MessageDigest digest = DIGEST.get();
+        return bytesToHex(digest.digest(id.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String compact(String name, String[] keys, Object[] values) {
+        KeyEncoder encoder = ENCODER.get();
+        encoder.reset();
+        encoder.writeString(name);
+        for (int i = 0; i < keys.length; i++) {
+            encoder.writeString(keys[i]);
+            encoder.writeValue(values[i]);
+        }
+
+        MessageDigest digest = DIGEST.get();
+        digest.update(encoder.buffer, 0, encoder.length);
+        try {
+            digest.digest(encoder.id, 1, encoder.id.length - 1);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Unable to compute CollectionItem id", e);
+        }
+        return new String(encoder.id, 0, COMPACT_ID_LENGTH, StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+    Converts an id to the value stored as _id. Ids of the legacy scheme are stored as they are.
+     */
+    static Object toBson(String id) {
+        if (isCompact(id)) {
+            return new Binary(compactBytes(id));
+        }
+        return id;
+    }
+
+    static String fromBson(Object id) {
+        if (id instanceof Binary) {
+            byte[] data = ((Binary) id).getData();
+            byte[] marked = new byte[data.length + 1];
+            marked[0] = COMPACT_MARKER;
+            System.arraycopy(data, 0, marked, 1, data.length);
+            return new String(marked, StandardCharsets.ISO_8859_1);
+        }
+        return id.toString();
+    }
+
+    static boolean isCompact(String id) {
+        return id.length() == COMPACT_ID_LENGTH && id.charAt(0) == COMPACT_MARKER;
+    }
+
+    /*
+    Printable form of an id for log messages, compact ids are hex encoded.
+     */
+    public static String display(String id) {
+        if (!isCompact(id)) {
+            return id;
+        }
+        return bytesToHex(compactBytes(id));
+    }
+
+    private static byte[] compactBytes(String id) {
+        byte[] data = new byte[COMPACT_ID_BYTES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) id.charAt(i + 1);
+        }
+        return data;
+    }
+
+    //Courtesy of SO 9655181
+    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+    public static String bytesToHex(byte[] bytes) {
+        return bytesToHex(bytes, bytes.length);
+    }
+
+    static String bytesToHex(byte[] bytes, int length) {
+        char[] hexChars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class KeyEncoder {
+        byte[] buffer = new byte[256];
+        // The marker followed by the SHA-256 digest, the id is built from its first COMPACT_ID_LENGTH bytes.
+        final byte[] id = newIdBuffer();
+        int length;
+
+        private static byte[] newIdBuffer() {
+            byte[] id = new byte[33];
+            id[0] = COMPACT_MARKER;
+            return id;
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(TAG_INTEGRAL);
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                writeByte(TAG_FLOATING);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof Boolean) {
+                writeByte(TAG_BOOLEAN);
+                writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+            } else if (value instanceof DateTime) {
+                writeByte(TAG_DATE);
+                writeLong(((DateTime) value).getMillis());
+            } else if (value instanceof Date) {
+                writeByte(TAG_DATE);
+                writeLong(((Date) value).getTime());
+            } else {
+                writeString(value.toString());
+            }
+        }
+
+        void writeString(String value) {
+            writeByte(TAG_STRING);
+            writeInt(value.length());
+            ensure(value.length() * 2);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                buffer[length++] = (byte) (c >>> 8);
+                buffer[length++] = (byte) c;
+            }
+        }
+
+        void writeByte(byte value) {
+            ensure(1);
+            buffer[length++] = value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void ensure(int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+            }
+        }
+    }
+}
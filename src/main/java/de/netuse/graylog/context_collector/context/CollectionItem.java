@@ -61,13 +61,23 @@ public abstract class CollectionItem {
     @JsonProperty("complete")
     public abstract boolean complete();
 
+    // Set on the copies the timeout check emits of open items, it is not stored.
+    @JsonProperty("snapshot")
+    public abstract boolean snapshot();
+
+    public static CollectionItem create(String id, String name, long invalid_after, Map<String,Object> collected_fields,
+                                        long collection_start, long collection_end, boolean complete) {
+        return create(id, name, invalid_after, collected_fields, collection_start, collection_end, complete, null);
+    }
+
     @JsonCreator
     public static CollectionItem create(@JsonProperty("id") String id, @JsonProperty("name") String name,
                                                  @JsonProperty("invalid_after") long invalid_after,
                                                  @JsonProperty("collected_fields") Map<String,Object> collected_fields,
                                                  @JsonProperty("collection_start") long collection_start,
                                                  @JsonProperty("collection_end") long collection_end,
-                                                 @JsonProperty("complete") boolean complete) {
+                                                 @JsonProperty("complete") boolean complete,
+                                                 @JsonProperty("snapshot") @Nullable Boolean snapshot) {
         return builder()
                 .id(id)
                 .name(name)
@@ -76,10 +86,11 @@ public abstract class CollectionItem {
                 .collection_start(collection_start)
                 .collection_end(collection_end)
                 .complete(complete)
+                .snapshot(snapshot != null && snapshot)
                 .build();
     }
     public static Builder builder() {
-        return new AutoValue_CollectionItem.Builder();
+        return new AutoValue_CollectionItem.Builder().snapshot(false);
     }
 
     public abstract Builder toBuilder();
@@ -93,6 +104,7 @@ public abstract class CollectionItem {
         public abstract Builder collection_start(long collection_start);
         public abstract Builder collection_end(long collection_end);
         public abstract Builder complete(boolean complete);
+        public abstract Builder snapshot(boolean snapshot);
         public abstract CollectionItem build();
     }
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+@desc Compact binary encoding of a CollectionItem for the RawMessage handed from the ContextCollectorTransport to the ContextCollectorCodec.
+The payload starts with a format byte, which is never '{', so JSON payloads written by older versions still decode.
+Version 2 adds the snapshot flag, version 1 payloads, e.g. from a journal written before, decode as no snapshot.
+
+Only strings, numbers, booleans and null are encoded. Numbers decode to the same types a JSON round trip produced:
+integral values to Integer if they fit and Long otherwise, floating point values to Double. Items holding other
+values, e.g. dates read back from the database, cannot be encoded and are sent as JSON as before.
+ */
+public final class CollectionItemEncoding {
+    static final byte FORMAT_BINARY_V1 = 1;
+    static final byte FORMAT_BINARY_V2 = 2;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INTEGRAL = 2;
+    private static final byte TAG_FLOATING = 3;
+    private static final byte TAG_TRUE = 4;
+    private static final byte TAG_FALSE = 5;
+
+    private CollectionItemEncoding() {
+    }
+
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && (payload[0] == FORMAT_BINARY_V1 || payload[0] == FORMAT_BINARY_V2);
+    }
+
+    /*
+    Returns null if the item holds values that have no binary encoding.
+     */
+    @Nullable
+    public static byte[] encode(CollectionItem item) {
+        for (Object value : item.collected_fields().values()) {
+            if (!isEncodable(value)) {
+                return null;
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + item.collected_fields().size() * 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_BINARY_V2);
+            writeString(out, item.id());
+            writeString(out, item.name());
+            out.writeLong(item.invalid_after());
+            out.writeLong(item.collection_start());
+            out.writeLong(item.collection_end());
+            out.writeBoolean(item.complete());
+            out.writeBoolean(item.snapshot());
+            out.writeInt(item.collected_fields().size());
+            for (Map.Entry<String, Object> field : item.collected_fields().entrySet()) {
+                writeString(out, field.getKey());
+                writeValue(out, field.getValue());
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static CollectionItem decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte format = in.readByte();
+        if (format != FORMAT_BINARY_V1 && format != FORMAT_BINARY_V2) {
+            throw new IOException("Unknown CollectionItem encoding " + format);
+        }
+        String id = readString(in);
+        String name = readString(in);
+        long invalidAfter = in.readLong();
+        long collectionStart = in.readLong();
+        long collectionEnd = in.readLong();
+        boolean complete = in.readBoolean();
+        boolean snapshot = format >= FORMAT_BINARY_V2 && in.readBoolean();
+        int count = in.readInt();
+        Map<String, Object> fields = new HashMap<>(Math.max(16, count * 2));
+        for (int i = 0; i < count; i++) {
+            String field = readString(in);
+            fields.put(field, readValue(in));
+        }
+        return CollectionItem.create(id, name, invalidAfter, fields, collectionStart, collectionEnd, complete, snapshot);
+    }
+
+    private static boolean isEncodable(Object value) {
+        return value == null || value instanceof String || value instanceof Boolean
+                || value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof Double || value instanceof Float;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_FLOATING);
+            out.writeDouble(((Number) value).doubleValue());
+        } else {
+            out.writeByte(TAG_INTEGRAL);
+            out.writeLong(((Number) value).longValue());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_FLOATING:
+                return in.readDouble();
+            case TAG_INTEGRAL:
+                long value = in.readLong();
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/*
+@desc Append-only journal of finished CollectionItems waiting for the ContextCollectorInput, kept in memory-mapped segment files.
+Items survive a restart or crash of the node, the TimeoutCheck already removed them from the database when they're appended.
+
+Segments are named after the journal offset of their first byte. A record is
+    int length | int crc32 | long appended at (epoch millis) | payload
+and the length is written last, so a record torn by a crash reads as the end of the journal. A length of -1 marks
+the end of a segment. The payload uses CollectionItemEncoding, or JSON for items it cannot encode.
+
+Reading moves a read offset, acknowledge() stores it as the acknowledged offset and removes segments that were read
+completely. On startup reading resumes at the acknowledged offset, so items read but not acknowledged are replayed.
+Every appended record and every acknowledged offset is forced to disk before the call returns. Segments are at most
+MAX_SEGMENT_SIZE bytes, a mapping cannot be larger than 2 GB.
+
+Not thread safe, CollectionItemQueue calls it under its lock.
+ */
+public class CollectionItemJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionItemJournal.class);
+    static final int HEADER_BYTES = 16;
+    static final int MIN_SEGMENT_SIZE = HEADER_BYTES * 64;
+    static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SUFFIX = ".journal";
+    private static final String ACK_FILE = "acknowledged.offset";
+
+    private static class Segment {
+        final long base;
+        final Path path;
+        final int size;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, Path path, int size, MappedByteBuffer buffer) {
+            this.base = base;
+            this.path = path;
+            this.size = size;
+            this.buffer = buffer;
+        }
+
+        long end() {
+            return base + size;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ObjectMapper objectMapper;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer ackBuffer;
+    private long writeOffset;
+    private long readOffset;
+    private int pending;
+    private boolean closed;
+
+    public CollectionItemJournal(Path directory, long segmentSize, int maxSegments, ObjectMapper objectMapper) {
+        if (segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Journal segments are limited to " + MAX_SEGMENT_SIZE + " bytes, got " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.objectMapper = objectMapper;
+    }
+
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                segments.put(base, map(file, (int) Files.size(file), base));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(ACK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ackBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, createSegment(0L));
+        }
+
+        long acknowledged = Math.max(ackBuffer.getLong(0), segments.firstKey());
+        readOffset = acknowledged;
+        removeReadSegments(acknowledged);
+        replay();
+    }
+
+    /*
+    Walks the records after the acknowledged offset to find the write offset and the number of pending items.
+     */
+    private void replay() {
+        long offset = readOffset;
+        int records = 0;
+        while (true) {
+            Segment segment = segments.floorEntry(offset).getValue();
+            int position = (int) (offset - segment.base);
+            int length = position + HEADER_BYTES <= segment.size ? segment.buffer.getInt(position) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.base);
+                if (next == null) {
+                    break;
+                }
+                offset = next.getKey();
+                continue;
+            }
+            if (length <= 0 || position + HEADER_BYTES + length > segment.size || !checksumMatches(segment, position, length)) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+            records++;
+        }
+        writeOffset = offset;
+        pending = records;
+        if (records > 0) {
+            LOG.info("Replaying {} CollectionItems from journal {}", records, directory);
+        }
+    }
+
+    /*
+    Returns false if the journal is full or closed.
+     */
+    public boolean append(CollectionItem item) throws IOException {
+        if (closed) {
+            return false;
+        }
+        byte[] payload = encode(item);
+        int recordSize = HEADER_BYTES + payload.length;
+        Segment segment = segments.lastEntry().getValue();
+        int position = (int) (writeOffset - segment.base);
+        if (position + recordSize > segment.size) {
+            if (recordSize > segmentSize - Integer.BYTES) {
+                LOG.warn("CollectionItem {} does not fit into a journal segment", CollectionIds.display(item.id()));
+                return false;
+            }
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            if (position + Integer.BYTES <= segment.size) {
+                segment.buffer.putInt(position, END_OF_SEGMENT);
+            }
+            segment.buffer.force();
+            segment = createSegment(segment.end());
+            segments.put(segment.base, segment);
+            writeOffset = segment.base;
+            position = 0;
+        }
+
+        crc.reset();
+        crc.update(payload);
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putLong(position + 8, System.currentTimeMillis());
+        buffer.put(position + HEADER_BYTES, payload);
+        buffer.putInt(position, payload.length);
+        buffer.force(position, recordSize);
+        writeOffset += recordSize;
+        pending++;
+        return true;
+    }
+
+    /*
+    Reads up to maxItems items after the read offset. The age of every item in milliseconds is passed to age.
+     */
+    public int read(Collection<CollectionItem> target, int maxItems, LongConsumer age) {
+        int read = 0;
+        long now = System.currentTimeMillis();
+        while (read < maxItems && pending > 0 && !closed) {
+            Segment segment = segments.floorEntry(readOffset).getValue();
+            int position = (int) (readOffset - segment.base);
+            int length = position + HEADER_BYTES <= segment.size ? segment.buffer.getInt(position) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT) {
+                readOffset = segment.end();
+                continue;
+            }
+            if (length <= 0) {
+                LOG.error("Journal {} ends at offset {} with {} items pending", directory, readOffset, pending);
+                pending = 0;
+                break;
+            }
+            byte[] payload = new byte[length];
+            segment.buffer.get(position + HEADER_BYTES, payload);
+            age.accept(now - segment.buffer.getLong(position + 8));
+            readOffset += HEADER_BYTES + length;
+            pending--;
+            try {
+                target.add(decode(payload));
+                read++;
+            } catch (IOException e) {
+                LOG.error("Skipping unreadable CollectionItem in journal at offset {}: {}", readOffset, e.getMessage());
+            }
+        }
+        return read;
+    }
+
+    public void acknowledge() {
+        if (closed) {
+            return;
+        }
+        ackBuffer.putLong(0, readOffset);
+        ackBuffer.force();
+        removeReadSegments(readOffset);
+    }
+
+    public int pending() {
+        return closed ? 0 : pending;
+    }
+
+    private void removeReadSegments(long acknowledged) {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext() && segments.size() > 1) {
+            Segment segment = iterator.next();
+            if (segment.end() > acknowledged) {
+                break;
+            }
+            iterator.remove();
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete journal segment {}: {}", segment.path, e.getMessage());
+            }
+        }
+    }
+
+    private boolean checksumMatches(Segment segment, int position, int length) {
+        byte[] payload = new byte[length];
+        segment.buffer.get(position + HEADER_BYTES, payload);
+        crc.reset();
+        crc.update(payload);
+        return segment.buffer.getInt(position + 4) == (int) crc.getValue();
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        return map(directory.resolve(String.format("%020d%s", base, SUFFIX)), segmentSize, base);
+    }
+
+    private static Segment map(Path file, int size, long base) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(base, file, size, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private byte[] encode(CollectionItem item) throws IOException {
+        byte[] payload = CollectionItemEncoding.encode(item);
+        return payload != null ? payload : objectMapper.writeValueAsBytes(item);
+    }
+
+    private CollectionItem decode(byte[] payload) throws IOException {
+        return CollectionItemEncoding.isBinary(payload)
+                ? CollectionItemEncoding.decode(payload)
+                : objectMapper.readValue(payload, CollectionItem.class);
+    }
+
+    /*
+    The mappings are released once the buffers are collected, Java has no way to unmap them explicitly.
+    Items appended after closing are refused.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        if (ackBuffer != null) {
+            ackBuffer.force();
+            ackBuffer = null;
+        }
+    }
+}
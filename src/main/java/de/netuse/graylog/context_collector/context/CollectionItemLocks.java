@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+@desc Node local locks for CollectionItem ids, a fixed table of locks indexed by the hash of the id.
+The number of stripes is rounded up to a power of two. Ids sharing a stripe wait for each other, which is rare with
+enough stripes and keeps the table free of per id objects. A caller holds at most one stripe, so callers never
+wait for each other in a cycle.
+
+Exposed metrics: the time spent acquiring a stripe (wait), and meters for acquisitions that found the stripe
+taken (contended) and for tries that timed out (timeouts).
+ */
+public class CollectionItemLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    private final Timer wait;
+    private final Meter contended;
+    private final Meter timeouts;
+
+    public CollectionItemLocks(int stripes, MetricRegistry metricRegistry) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.wait = metricRegistry.timer(name(CollectionItemLocks.class, "wait"));
+        this.contended = metricRegistry.meter(name(CollectionItemLocks.class, "contended"));
+        this.timeouts = metricRegistry.meter(name(CollectionItemLocks.class, "timeouts"));
+    }
+
+    public int size() {
+        return stripes.length;
+    }
+
+    int stripe(String id) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public void execute(String id, Runnable action) {
+        ReentrantLock lock = stripes[stripe(id)];
+        long start = System.nanoTime();
+        if (!lock.tryLock()) {
+            contended.mark();
+            lock.lock();
+        }
+        wait.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Runs the action if the stripe of the id can be taken within the timeout, returns false otherwise.
+     */
+    public boolean tryExecute(String id, long timeout, TimeUnit unit, Runnable action) throws InterruptedException {
+        ReentrantLock lock = stripes[stripe(id)];
+        if (!acquire(lock, System.nanoTime(), unit.toNanos(timeout))) {
+            return false;
+        }
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private boolean acquire(ReentrantLock lock, long start, long timeoutNanos) throws InterruptedException {
+        if (!lock.tryLock()) {
+            contended.mark();
+            if (!lock.tryLock(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS)) {
+                timeouts.mark();
+                return false;
+            }
+        }
+        wait.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+@desc Bounded queue handing finished CollectionItems from the ContextCollectorProcessor and TimeoutCheck to the ContextCollectorInput.
+Checking for free space and enqueuing happen under one lock, offer() tells the caller what became of the item.
+Capacity, overflow policy and offer timeout can be changed at runtime.
+
+Items are kept in memory, or in a CollectionItemJournal when one is given. The journal keeps items across restarts,
+its size limit replaces the capacity. Taken items have to be acknowledged after they were handed on, items taken
+but not acknowledged are replayed from the journal after a restart.
+
+Exposed metrics: depth and capacity gauges, the time producers waited for space (offer-wait), the time items
+spent in the queue (queue-time) and meters for items written back and dropped on overflow.
+ */
+public class CollectionItemQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionItemQueue.class);
+
+    public enum Handoff {
+        QUEUED,
+        // The queue is full or the journal failed, the caller has to keep the item in the database.
+        WRITE_BACK,
+        DROPPED
+    }
+
+    private static class Entry {
+        final CollectionItem item;
+        final long enqueued;
+
+        Entry(CollectionItem item, long enqueued) {
+            this.item = item;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int capacity;
+    private QueueOverflowPolicy policy;
+    private long offerTimeout;
+    @Nullable
+    private final CollectionItemJournal journal;
+
+    private final Timer offerWait;
+    private final Timer queueTime;
+    private final Meter writtenBack;
+    private final Meter dropped;
+
+    public CollectionItemQueue(int capacity, QueueOverflowPolicy policy, long offerTimeout, MetricRegistry metricRegistry) {
+        this(capacity, policy, offerTimeout, metricRegistry, null);
+    }
+
+    public CollectionItemQueue(int capacity, QueueOverflowPolicy policy, long offerTimeout, MetricRegistry metricRegistry,
+                               @Nullable CollectionItemJournal journal) {
+        this.journal = journal;
+        configure(capacity, policy, offerTimeout);
+        this.offerWait = metricRegistry.timer(name(CollectionItemQueue.class, "offer-wait"));
+        this.queueTime = metricRegistry.timer(name(CollectionItemQueue.class, "queue-time"));
+        this.writtenBack = metricRegistry.meter(name(CollectionItemQueue.class, "overflow", "write-back"));
+        this.dropped = metricRegistry.meter(name(CollectionItemQueue.class, "overflow", "dropped"));
+        metricRegistry.register(name(CollectionItemQueue.class, "depth"), (Gauge<Integer>) this::size);
+        metricRegistry.register(name(CollectionItemQueue.class, "capacity"), (Gauge<Integer>) this::capacity);
+    }
+
+    public void configure(int capacity, QueueOverflowPolicy policy, long offerTimeout) {
+        lock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+            this.policy = policy;
+            this.offerTimeout = Math.max(0, offerTimeout);
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Handoff offer(CollectionItem item) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+            while (true) {
+                if (append(item)) {
+                    notEmpty.signal();
+                    return Handoff.QUEUED;
+                }
+                if (policy != QueueOverflowPolicy.BLOCK || remaining <= 0) {
+                    break;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            if (policy == QueueOverflowPolicy.DROP) {
+                dropped.mark();
+                return Handoff.DROPPED;
+            }
+            writtenBack.mark();
+            return Handoff.WRITE_BACK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writtenBack.mark();
+            return Handoff.WRITE_BACK;
+        } catch (IOException e) {
+            // Not a full queue, neither dropping nor waiting for space would help.
+            LOG.error("Unable to append CollectionItem to journal: {}", e.getMessage(), e);
+            writtenBack.mark();
+            return Handoff.WRITE_BACK;
+        } finally {
+            lock.unlock();
+            offerWait.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Called with the lock held
+    private boolean append(CollectionItem item) throws IOException {
+        if (journal == null) {
+            if (entries.size() >= capacity) {
+                return false;
+            }
+            entries.addLast(new Entry(item, System.nanoTime()));
+            return true;
+        }
+        return journal.append(item);
+    }
+
+    /*
+    Waits up to timeout for the first item, then moves up to maxItems items into the given collection
+    under one lock. Returns the number of items moved.
+     */
+    public int drainTo(Collection<CollectionItem> target, int maxItems, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (isEmpty()) {
+                if (remaining <= 0) {
+                    return 0;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            if (journal != null) {
+                return journal.read(target, maxItems, age -> queueTime.update(age, TimeUnit.MILLISECONDS));
+            }
+            int drained = 0;
+            long now = System.nanoTime();
+            while (drained < maxItems && !entries.isEmpty()) {
+                Entry entry = entries.pollFirst();
+                queueTime.update(now - entry.enqueued, TimeUnit.NANOSECONDS);
+                target.add(entry.item);
+                drained++;
+            }
+            notFull.signalAll();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Confirms that the items taken so far were handed on. Only needed with a journal.
+     */
+    public void acknowledge() {
+        if (journal == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            journal.acknowledge();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Closes the journal, later offers are answered with WRITE_BACK, so finished items stay in the database.
+     */
+    public void close() {
+        if (journal == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            journal.close();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmpty() {
+        return journal != null ? journal.pending() == 0 : entries.isEmpty();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return journal != null ? journal.pending() : entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
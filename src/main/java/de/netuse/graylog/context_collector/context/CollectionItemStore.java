@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc Access to the stored CollectionItems. Updates are merged into the stored item,
+so several nodes can write to the same item without overwriting each others fields.
+ */
+public interface CollectionItemStore {
+    @Nullable
+    CollectionItem find(String id);
+
+    /*
+    Writes the whole item, replacing a stored item with the same id.
+     */
+    void create(CollectionItem item);
+
+    /*
+    Sets the collected fields, invalid_after and complete of an existing item.
+     */
+    void update(CollectionItem item);
+
+    /*
+    Puts a claimed item back, merging it with fields written since it was claimed.
+    Without configuration all fields are replaced.
+     */
+    void writeBack(CollectionItem item, @Nullable CollectionConfiguration configuration);
+
+    /*
+    Creates missing items and merges the fields of existing ones, all updates are sent in one batch.
+    Returns the updates that created an item.
+     */
+    List<CollectionItemUpdate> upsertAll(Collection<CollectionItemUpdate> updates);
+
+    /*
+    Creates or merges a single item and returns the item as stored after the update.
+     */
+    UpsertedItem upsertAndGet(CollectionItemUpdate update);
+
+    List<CollectionItem> findByIds(Collection<String> ids);
+
+    /*
+    Leases up to limit expired items to the given node and returns them. Items leased by another node are skipped
+    until their lease ran out, so several nodes can sweep the same collection without emitting an item twice.
+     */
+    List<CollectionItem> claimExpired(long now, String node, int limit, long leaseSeconds);
+
+    /*
+    Leases up to limit items of one collection like claimExpired, whether they expired or not. The oldest items
+    come first, ordered by collection_start, or by collection_end if byLastUpdate is set.
+     */
+    List<CollectionItem> claimOldest(String name, boolean byLastUpdate, long now, String node, int limit, long leaseSeconds);
+
+    /*
+    Leases up to limit items of one collection that were started before the given time, like claimExpired.
+     */
+    List<CollectionItem> claimStartedBefore(String name, long started, long now, String node, int limit, long leaseSeconds);
+
+    /*
+    Leases up to limit items of one collection whose last snapshot, or start if they had none, is before the given time.
+     */
+    List<CollectionItem> claimSnapshotDue(String name, long before, long now, String node, int limit, long leaseSeconds);
+
+    /*
+    Records the snapshot time of the items and ends their lease, the items stay open.
+     */
+    void snapshotTaken(Collection<String> ids, long now);
+
+    /*
+    Moves invalid_after of the items back to the given time if it is later, so the TimeoutCheck sweeps them then.
+     */
+    void expireBy(Collection<String> ids, long invalidAfter);
+
+    void remove(String id);
+
+    /*
+    Atomically removes an item a sweep claimed and returns it as stored, including fields written since the claim.
+    Returns null if the item is gone or no longer carries the lease of the sweep, in which case another node might
+    own it by now.
+     */
+    @Nullable
+    CollectionItem removeClaimed(String id, String node, long claimUntil);
+
+    /*
+    Atomically removes the item and returns it. Only one caller gets the item, which makes it
+    safe to emit whatever is returned. An item another node leased for expiry is left to that node,
+    null is returned for it as for a missing item.
+     */
+    @Nullable
+    CollectionItem claim(String id, String node, long now);
+
+    /*
+    Moves up to limit items stored under SHA256_HEX ids to their COMPACT id, merging them with items
+    that were already created under the new id. Returns the number of items moved.
+     */
+    int migrateLegacyIds(Map<String, CollectionConfiguration> configurations, int limit);
+
+    /*
+    Estimated number of stored items.
+     */
+    long count();
+
+    /*
+    Number of stored items of one collection.
+     */
+    long count(String name);
+}
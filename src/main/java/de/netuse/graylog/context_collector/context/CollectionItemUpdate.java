@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.bson.types.ObjectId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+@desc A CollectionItemUpdate holds the fields collected for one CollectionItem that still have to be merged into the database.
+Key fields and value fields are written with $set, the key fields carry the same value for every message of an item.
+Aggregated value fields hold partial values, the database combines them with the stored ones, see Aggregation.
+Timestamps are epoch seconds like in CollectionItem.
+An update is not changed any more once it was written, a retry sends it again with the same write token.
+ */
+public class CollectionItemUpdate {
+    private final String id;
+    private final CollectionConfiguration configuration;
+    private final Map<String, Object> fields = new HashMap<>();
+    private long collectionStart;
+    private long lastSeen;
+    private String writeToken;
+
+    public CollectionItemUpdate(String id, CollectionConfiguration configuration, long now) {
+        this.id = id;
+        this.configuration = configuration;
+        this.collectionStart = now;
+        this.lastSeen = now;
+    }
+
+    public void merge(CompiledConfiguration.Extraction extraction, long now) {
+        extraction.putFields(fields);
+        touch(now);
+    }
+
+    /*
+    Merges partial values, e.g. of a migrated item or a later update, following the aggregation of each field.
+     */
+    public void mergeFields(Map<String, Object> collected, long start, long now) {
+        configuration.mergeFields(fields, collected);
+        collectionStart = Math.min(collectionStart, start);
+        touch(now);
+    }
+
+    private void touch(long now) {
+        lastSeen = Math.max(lastSeen, now);
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public CollectionConfiguration configuration() {
+        return configuration;
+    }
+
+    public Map<String, Object> fields() {
+        return fields;
+    }
+
+    public long collectionStart() {
+        return collectionStart;
+    }
+
+    public long lastSeen() {
+        return lastSeen;
+    }
+
+    /*
+    Counts and sums are added to the stored values, the store records the token of each applied update
+    so a retried update is not added twice.
+     */
+    public boolean increments() {
+        for (String field : fields.keySet()) {
+            Aggregation aggregation = configuration.aggregation(field);
+            if (aggregation == Aggregation.COUNT || aggregation == Aggregation.SUM) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized String writeToken() {
+        if (writeToken == null) {
+            writeToken = new ObjectId().toHexString();
+        }
+        return writeToken;
+    }
+
+    public long invalidAfter() {
+        return lastSeen + configuration.timeoutSeconds();
+    }
+}
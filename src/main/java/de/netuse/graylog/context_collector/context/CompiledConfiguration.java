@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.Message;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc Extraction plan for one CollectionConfiguration, compiled when the configuration is loaded.
+Key fields are sorted once in the order used for the id, value fields that are also key fields are dropped,
+so extracting a message reads every needed field exactly once and without a hasField check.
+ */
+public final class CompiledConfiguration {
+    private final CollectionConfiguration configuration;
+    private final String[] keyFields;
+    private final String[] valueFields;
+    private final Aggregation[] aggregations;
+
+    public CompiledConfiguration(CollectionConfiguration configuration) {
+        this.configuration = configuration;
+        this.keyFields = configuration.key_fields().stream().sorted().toArray(String[]::new);
+        List<String> values = new ArrayList<>();
+        for (String field : configuration.value_fields()) {
+            if (!configuration.key_fields().contains(field) && !values.contains(field)) {
+                values.add(field);
+            }
+        }
+        this.valueFields = values.toArray(new String[0]);
+        this.aggregations = new Aggregation[valueFields.length];
+        for (int i = 0; i < valueFields.length; i++) {
+            aggregations[i] = configuration.aggregation(valueFields[i]);
+        }
+    }
+
+    public CollectionConfiguration configuration() {
+        return configuration;
+    }
+
+    String[] keyFields() {
+        return keyFields;
+    }
+
+    /*
+    Returns null if the message misses one of the key fields.
+     */
+    @Nullable
+    public Extraction extract(Message message) {
+        Object[] keys = new Object[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++) {
+            Object value = message.getField(keyFields[i]);
+            if (value == null) {
+                return null;
+            }
+            keys[i] = value;
+        }
+        Object[] values = new Object[valueFields.length];
+        for (int i = 0; i < valueFields.length; i++) {
+            values[i] = message.getField(valueFields[i]);
+        }
+        return new Extraction(this, keys, values);
+    }
+
+    /*
+    @desc The key and value fields read from one message for one configuration.
+     */
+    public static final class Extraction {
+        private final CompiledConfiguration plan;
+        private final Object[] keyValues;
+        private final Object[] values;
+
+        Extraction(CompiledConfiguration plan, Object[] keyValues, Object[] values) {
+            this.plan = plan;
+            this.keyValues = keyValues;
+            this.values = values;
+        }
+
+        public CollectionConfiguration configuration() {
+            return plan.configuration;
+        }
+
+        String[] keyFields() {
+            return plan.keyFields;
+        }
+
+        Object[] keyValues() {
+            return keyValues;
+        }
+
+        public void putKeyFields(Map<String, Object> target) {
+            for (int i = 0; i < keyValues.length; i++) {
+                target.put(plan.keyFields[i], keyValues[i]);
+            }
+        }
+
+        /*
+        Puts the key fields and merges the value fields present in the message, following the aggregation of each field.
+         */
+        public void putFields(Map<String, Object> target) {
+            putKeyFields(target);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) {
+                    continue;
+                }
+                Aggregation aggregation = plan.aggregations[i];
+                if (aggregation == Aggregation.LAST) {
+                    target.put(plan.valueFields[i], values[i]);
+                    continue;
+                }
+                Object partial = aggregation.initial(values[i]);
+                if (partial != null) {
+                    target.merge(plan.valueFields[i], partial, aggregation::combine);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return configuration().name() + Arrays.toString(keyValues);
+        }
+    }
+}
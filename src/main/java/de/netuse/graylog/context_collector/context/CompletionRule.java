@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+import org.graylog.autovalue.WithBeanGetter;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc A CompletionRule lets a CollectionItem finish before all value fields were collected.
+FIELD_PRESENT matches once any of the fields was collected, e.g. a field only the last message of a flow carries.
+FIELD_EQUALS matches once one of the fields holds the value, compared as text.
+MIN_FIELDS matches once at least count of the fields were collected.
+ */
+@AutoValue
+@WithBeanGetter
+@JsonAutoDetect
+public abstract class CompletionRule {
+    public enum Type {
+        @JsonProperty("field_present")
+        FIELD_PRESENT,
+        @JsonProperty("field_equals")
+        FIELD_EQUALS,
+        @JsonProperty("min_fields")
+        MIN_FIELDS
+    }
+
+    @JsonProperty
+    public abstract Type type();
+
+    @JsonProperty
+    public abstract List<String> fields();
+
+    @JsonProperty
+    @Nullable
+    public abstract String value();
+
+    @JsonProperty
+    public abstract int count();
+
+    @JsonCreator
+    public static CompletionRule create(@JsonProperty("type") Type type,
+                                        @JsonProperty("fields") @Nullable List<String> fields,
+                                        @JsonProperty("value") @Nullable String value,
+                                        @JsonProperty("count") @Nullable Integer count) {
+        return new AutoValue_CompletionRule(type,
+                fields == null ? Collections.emptyList() : fields,
+                value,
+                count == null ? 1 : count);
+    }
+
+    /*
+    Rejects rules naming fields the collection does not collect, such a rule would never match.
+    Called when the configuration is read, so saving it fails instead.
+     */
+    void checkFields(List<String> key_fields, List<String> value_fields) {
+        if (fields().isEmpty()) {
+            throw new IllegalArgumentException("Completion rule " + type() + " has no fields");
+        }
+        for (String field : fields()) {
+            if (!key_fields.contains(field) && !value_fields.contains(field)) {
+                throw new IllegalArgumentException("Completion rule field " + field + " is neither a key nor a value field");
+            }
+        }
+    }
+
+    public boolean matches(Map<String, Object> collected_fields) {
+        switch (type()) {
+            case FIELD_EQUALS:
+                for (String field : fields()) {
+                    Object collected = collected_fields.get(field);
+                    if (collected != null && collected.toString().equals(value())) {
+                        return true;
+                    }
+                }
+                return false;
+            case MIN_FIELDS:
+                int present = 0;
+                for (String field : fields()) {
+                    if (collected_fields.containsKey(field) && ++present >= count()) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                for (String field : fields()) {
+                    if (collected_fields.containsKey(field)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.Message;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc Dispatch index over the enabled configurations, keyed by field name.
+Every configuration is filed under one of its key fields, its anchor. A message only evaluates the configurations whose
+anchor it carries, so the cost per message depends on the configurations that can match and not on how many exist.
+The anchor is the key field shared with the fewest other configurations. Matches are returned in the order of the
+configurations, whichever order the anchors are found in.
+ */
+public final class ConfigurationIndex {
+    private final List<CompiledConfiguration> configurations;
+    private final Map<String, List<CompiledConfiguration>> byAnchor = new HashMap<>();
+    private final Map<String, CompiledConfiguration> byName = new HashMap<>();
+    private final Map<CompiledConfiguration, Integer> positions = new IdentityHashMap<>();
+    private final Comparator<CompiledConfiguration> byPosition = Comparator.comparing(positions::get);
+    // Configurations without key fields match every message.
+    private final List<CompiledConfiguration> unanchored = new ArrayList<>();
+
+    public ConfigurationIndex(List<CompiledConfiguration> configurations) {
+        this.configurations = Collections.unmodifiableList(new ArrayList<>(configurations));
+
+        Map<String, Integer> usage = new HashMap<>();
+        for (CompiledConfiguration compiled : configurations) {
+            for (String field : compiled.keyFields()) {
+                usage.merge(field, 1, Integer::sum);
+            }
+        }
+        for (CompiledConfiguration compiled : configurations) {
+            positions.put(compiled, positions.size());
+            byName.put(compiled.configuration().name(), compiled);
+            String anchor = null;
+            for (String field : compiled.keyFields()) {
+                if (anchor == null || usage.get(field) < usage.get(anchor)) {
+                    anchor = field;
+                }
+            }
+            if (anchor == null) {
+                unanchored.add(compiled);
+            } else {
+                byAnchor.computeIfAbsent(anchor, field -> new ArrayList<>()).add(compiled);
+            }
+        }
+    }
+
+    public static ConfigurationIndex compile(List<CollectionConfiguration> configurations) {
+        List<CompiledConfiguration> compiled = new ArrayList<>(configurations.size());
+        for (CollectionConfiguration configuration : configurations) {
+            compiled.add(new CompiledConfiguration(configuration));
+        }
+        return new ConfigurationIndex(compiled);
+    }
+
+    public List<CompiledConfiguration> configurations() {
+        return configurations;
+    }
+
+    /*
+    Returns null if no enabled configuration has the name.
+     */
+    @Nullable
+    public CompiledConfiguration compiled(String name) {
+        return byName.get(name);
+    }
+
+    public List<CompiledConfiguration.Extraction> match(Message message) {
+        List<CompiledConfiguration> candidates = new ArrayList<>(unanchored);
+        // Walk whichever side is smaller, the anchors or the fields of the message.
+        if (byAnchor.size() <= message.getFieldCount()) {
+            for (Map.Entry<String, List<CompiledConfiguration>> anchor : byAnchor.entrySet()) {
+                if (message.hasField(anchor.getKey())) {
+                    candidates.addAll(anchor.getValue());
+                }
+            }
+        } else {
+            for (String field : message.getFieldNames()) {
+                List<CompiledConfiguration> anchored = byAnchor.get(field);
+                if (anchored != null) {
+                    candidates.addAll(anchored);
+                }
+            }
+        }
+        if (candidates.size() > 1) {
+            candidates.sort(byPosition);
+        }
+
+        List<CompiledConfiguration.Extraction> matches = new ArrayList<>(candidates.size());
+        for (CompiledConfiguration compiled : candidates) {
+            CompiledConfiguration.Extraction extraction = compiled.extract(message);
+            if (extraction != null) {
+                matches.add(extraction);
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc Immutable view of the plugin configuration as loaded by the CollectionConfigurationRegistry.
+Holds the enabled CollectionConfigurations, a lookup by name and the compiled dispatch index.
+The version increases with every change.
+ */
+public final class ConfigurationSnapshot {
+    private final long version;
+    private final PluginConfigurationV2 pluginConfiguration;
+    private final List<CollectionConfiguration> configurations;
+    private final Map<String, CollectionConfiguration> byName;
+    private final ConfigurationIndex index;
+
+    ConfigurationSnapshot(long version, PluginConfigurationV2 pluginConfiguration,
+                          List<CollectionConfiguration> configurations, ConfigurationIndex index) {
+        this.version = version;
+        this.pluginConfiguration = pluginConfiguration;
+        this.configurations = Collections.unmodifiableList(configurations);
+        Map<String, CollectionConfiguration> names = new HashMap<>();
+        for (CollectionConfiguration configuration : configurations) {
+            names.put(configuration.name(), configuration);
+        }
+        this.byName = Collections.unmodifiableMap(names);
+        this.index = index;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public PluginConfigurationV2 pluginConfiguration() {
+        return pluginConfiguration;
+    }
+
+    public List<CollectionConfiguration> configurations() {
+        return configurations;
+    }
+
+    public Map<String, CollectionConfiguration> byName() {
+        return byName;
+    }
+
+    public CollectionConfiguration configuration(String name) {
+        return byName.get(name);
+    }
+
+    public ConfigurationIndex index() {
+        return index;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+@desc Consistent hash ring over the active Graylog nodes. Every node is placed on the ring with a number of virtual
+tokens, a CollectionItem id belongs to the node of the first token at or after its position.
+CollectionItem ids are hashes already, so the position of an id is simply the first 8 bytes of its digest, taken
+from the raw bytes of a compact id or parsed from the hex of a SHA256_HEX id.
+When a node joins or leaves, only the ids between its tokens change owner.
+ */
+public final class ConsistentHashRing {
+    static final int VIRTUAL_NODES = 64;
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> tokens = new TreeMap<>();
+
+    public ConsistentHashRing(List<String> nodes) {
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+        for (String node : sorted) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                tokens.put(Hashing.murmur3_128().hashString(node + "#" + i, StandardCharsets.UTF_8).asLong(), node);
+            }
+        }
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public boolean isEmpty() {
+        return tokens.isEmpty();
+    }
+
+    public String owner(String id) {
+        return ownerOf(position(id));
+    }
+
+    String ownerOf(long position) {
+        Map.Entry<Long, String> token = tokens.ceilingEntry(position);
+        if (token == null) {
+            token = tokens.firstEntry();
+        }
+        return token.getValue();
+    }
+
+    static long position(String id) {
+        if (CollectionIds.isCompact(id)) {
+            long position = 0;
+            for (int i = 1; i <= 8; i++) {
+                position = (position << 8) | (id.charAt(i) & 0xFF);
+            }
+            return position;
+        }
+        return Long.parseUnsignedLong(id.substring(0, Math.min(16, id.length())), 16);
+    }
+}
@@ -17,33 +17,72 @@
 
 package de.netuse.graylog.context_collector.context;
 
-import com.antkorwin.xsync.XSync;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.file.Paths;
 
 
+/*
+@desc Provides the queue between Output and Input and the node local locks. The queue is backed by a journal
+if journal_enabled is set, the journal settings are read once when the node starts.
+ */
+@Singleton
 public class ContextCollectionCommunicationServiceImpl implements ContextCollectorCommunicationService{
-    private static ArrayBlockingQueue<CollectionItem> queue = null;
-    private static XSync<String> xSync = null;
+    private static final Logger LOG = LoggerFactory.getLogger(ContextCollectionCommunicationServiceImpl.class);
+    private static final int MEGABYTE = 1024 * 1024;
+    private static final int LOCK_STRIPES = 1024;
+    private final CollectionItemQueue queue;
+    private final CollectionItemLocks locks;
 
-    ContextCollectionCommunicationServiceImpl() throws IOException {
-        if (queue == null) {
-           queue = new ArrayBlockingQueue<>(1024);
-        }
+    @Inject
+    ContextCollectionCommunicationServiceImpl(MetricRegistry metricRegistry, CollectionConfigurationRegistry registry, ObjectMapper objectMapper) {
+        PluginConfigurationV2 pluginConfiguration = registry.snapshot().pluginConfiguration();
+        queue = new CollectionItemQueue(pluginConfiguration.queueCapacity(), pluginConfiguration.queueOverflowPolicy(),
+                pluginConfiguration.queueOfferTimeout(), metricRegistry, openJournal(pluginConfiguration, objectMapper));
+        locks = new CollectionItemLocks(LOCK_STRIPES, metricRegistry);
+        registry.addListener(snapshot -> queue.configure(snapshot.pluginConfiguration().queueCapacity(),
+                snapshot.pluginConfiguration().queueOverflowPolicy(),
+                snapshot.pluginConfiguration().queueOfferTimeout()));
+    }
 
-        if (xSync == null) {
-            xSync = new XSync<String>();
+    @Nullable
+    private static CollectionItemJournal openJournal(PluginConfigurationV2 pluginConfiguration, ObjectMapper objectMapper) {
+        if (!pluginConfiguration.journalEnabled()) {
+            return null;
+        }
+        long segmentSize = (long) pluginConfiguration.journalSegmentSize() * MEGABYTE;
+        if (segmentSize <= 0 || segmentSize > CollectionItemJournal.MAX_SEGMENT_SIZE) {
+            LOG.error("Journal segment size of {} MB is outside of 1 to {} MB, keeping finished items in memory",
+                    pluginConfiguration.journalSegmentSize(), CollectionItemJournal.MAX_SEGMENT_SIZE / MEGABYTE);
+            return null;
+        }
+        CollectionItemJournal journal = new CollectionItemJournal(Paths.get(pluginConfiguration.journalPath()),
+                segmentSize, pluginConfiguration.journalMaxSegments(), objectMapper);
+        try {
+            journal.open();
+            return journal;
+        } catch (IOException e) {
+            LOG.error("Unable to open journal {}, keeping finished items in memory: {}", pluginConfiguration.journalPath(), e.getMessage(), e);
+            return null;
         }
     }
 
     @Override
-    public ArrayBlockingQueue<CollectionItem> getQueue() {
+    public CollectionItemQueue getQueue() {
         return queue;
     }
 
     @Override
-    public XSync<String> getSync() {
-        return xSync;
+    public CollectionItemLocks getLocks() {
+        return locks;
     }
 }
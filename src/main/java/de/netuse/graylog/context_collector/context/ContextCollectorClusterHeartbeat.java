@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import org.bson.Document;
+import org.graylog2.database.MongoConnection;
+import org.graylog2.plugin.periodical.Periodical;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.inject.Inject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+@desc This periodical runs on every node. It records that the node is alive in contextcollector_nodes and
+updates the KeyOwnership with every node that reported within the last HEARTBEAT_TIMEOUT seconds.
+ */
+public class ContextCollectorClusterHeartbeat extends Periodical {
+    private static final Logger LOG = LoggerFactory.getLogger(ContextCollectorClusterHeartbeat.class);
+    static final String collectionName = "contextcollector_nodes";
+    static final int HEARTBEAT_INTERVAL = 5;
+    static final int HEARTBEAT_TIMEOUT = 3 * HEARTBEAT_INTERVAL;
+    private static final int STALE_AFTER = 3600;
+
+    private final MongoCollection<Document> nodes;
+    private final KeyOwnership ownership;
+
+    @Inject
+    ContextCollectorClusterHeartbeat(final MongoConnection mongoConnection, final KeyOwnership ownership) {
+        this.nodes = mongoConnection.getMongoDatabase().getCollection(collectionName);
+        this.ownership = ownership;
+    }
+
+    @Override
+    public void doRun() {
+        long now = Instant.now().getEpochSecond();
+        nodes.replaceOne(Filters.eq("_id", ownership.localNodeId()),
+                new Document("_id", ownership.localNodeId()).append("last_seen", now),
+                new ReplaceOptions().upsert(true));
+
+        List<String> active = new ArrayList<>();
+        for (Document node : nodes.find(Filters.gte("last_seen", now - HEARTBEAT_TIMEOUT))) {
+            active.add(node.getString("_id"));
+        }
+        ownership.updateNodes(active);
+
+        nodes.deleteMany(Filters.lt("last_seen", now - STALE_AFTER));
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LOG;
+    }
+    @Override
+    public boolean runsForever() {
+        return false;
+    }
+    @Override
+    public boolean stopOnGracefulShutdown(){
+        return true;
+    }
+    @Override
+    public  boolean masterOnly() {
+        return false;
+    }
+    @Override
+    public  boolean startOnThisNode() {
+        return true;
+    }
+
+    @Override
+    public  boolean isDaemon() {
+        return true;
+    }
+
+    @Override
+    public int getInitialDelaySeconds() {
+        return 0;
+    }
+
+    @Override
+    public int getPeriodSeconds() {
+        return HEARTBEAT_INTERVAL;
+    }
+}
@@ -64,7 +64,10 @@ public class ContextCollectorCodec extends AbstractCodec {
             return null;
         }
         try {
-            final CollectionItem item = objectMapper.readValue(rawMessage.getPayload(), CollectionItem.class);
+            final byte[] payload = rawMessage.getPayload();
+            final CollectionItem item = CollectionItemEncoding.isBinary(payload)
+                    ? CollectionItemEncoding.decode(payload)
+                    : objectMapper.readValue(payload, CollectionItem.class);
             final Message message = this.messageFactory.createMessage("Collected log", "graylog", DateTime.now());
             message.addFields(item.collected_fields());
             message.addField("log.logger","ContextCollector");
@@ -73,6 +76,9 @@ public class ContextCollectorCodec extends AbstractCodec {
             message.addField("context_collector_start", new DateTime(item.collection_start()*1000));
             message.addField("context_collector_end", new DateTime(item.collection_end()*1000));
             message.addField("context_collector_complete", item.complete());
+            if (item.snapshot()) {
+                message.addField("context_collector_snapshot", true);
+            }
 
             return message;
         } catch (IOException e) {
@@ -17,14 +17,10 @@
 
 package de.netuse.graylog.context_collector.context;
 
-import com.antkorwin.xsync.XSync;
-
-import java.util.concurrent.ArrayBlockingQueue;
-
 /*
-@desc This provides the shared queue for OutPut to Input communication.
+@desc This provides the shared queue for OutPut to Input communication and the node local CollectionItem locks.
  */
 public interface ContextCollectorCommunicationService {
-    ArrayBlockingQueue<CollectionItem> getQueue();
-    XSync<String> getSync();
+    CollectionItemQueue getQueue();
+    CollectionItemLocks getLocks();
 }
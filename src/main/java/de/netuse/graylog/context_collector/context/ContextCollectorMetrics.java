@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+@desc Metrics of the context collector, registered with the Graylog MetricRegistry so they show up in the metrics API
+and, with prometheus-exporter-mapping.yml from the repository, in the Prometheus exporter.
+
+Per collection: de.netuse.graylog.context_collector.collections.<name>.{matched,created,completed,timed-out,dropped,refused,rejected,evicted,snapshots}
+Database: de.netuse.graylog.context_collector.mongo.<operation> timers
+Histogram: collection-duration (seconds, collection_end - collection_start)
+Lock contention is measured by CollectionItemLocks.
+Gauges: open-items (stored items) and buffered-items (items in the write-behind buffer)
+It also keeps the approximate number of open items per collection for the open item limits, see openItems().
+ */
+@Singleton
+public class ContextCollectorMetrics {
+    public static final String PREFIX = "de.netuse.graylog.context_collector";
+
+    private final MetricRegistry metricRegistry;
+    private final Histogram collectionDuration;
+    private final ConcurrentMap<String, CollectionMetrics> collections = new ConcurrentHashMap<>();
+
+    @Inject
+    public ContextCollectorMetrics(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        this.collectionDuration = metricRegistry.histogram(name(PREFIX, "collection-duration"));
+    }
+
+    public void matched(CollectionConfiguration configuration) {
+        collection(configuration.name()).matched.inc();
+    }
+
+    public void created(String collection) {
+        CollectionMetrics metrics = collection(collection);
+        metrics.created.inc();
+        metrics.open.incrementAndGet();
+    }
+
+    public void completed(CollectionItem item) {
+        CollectionMetrics metrics = collection(item.name());
+        metrics.completed.inc();
+        metrics.open.decrementAndGet();
+        collectionDuration.update(item.collection_end() - item.collection_start());
+    }
+
+    public void timedOut(CollectionItem item) {
+        CollectionMetrics metrics = collection(item.name());
+        metrics.timedOut.inc();
+        metrics.open.decrementAndGet();
+        collectionDuration.update(item.collection_end() - item.collection_start());
+    }
+
+    /*
+    Counts an item given to the queue. Items written back to the database are counted when they leave it.
+     */
+    public void handedOff(CollectionItem item, CollectionItemQueue.Handoff handoff, boolean timedOut) {
+        if (handoff == CollectionItemQueue.Handoff.DROPPED) {
+            dropped(item.name());
+        } else if (handoff == CollectionItemQueue.Handoff.QUEUED) {
+            if (timedOut) {
+                timedOut(item);
+            } else {
+                completed(item);
+            }
+        }
+    }
+
+    public void dropped(String collection) {
+        CollectionMetrics metrics = collection(collection);
+        metrics.dropped.inc();
+        metrics.open.decrementAndGet();
+    }
+
+    public void refused(CollectionConfiguration configuration) {
+        collection(configuration.name()).refused.inc();
+    }
+
+    public void rejected(CollectionConfiguration configuration) {
+        collection(configuration.name()).rejected.inc();
+    }
+
+    public void snapshot(String collection) {
+        collection(collection).snapshots.inc();
+    }
+
+    public void evicted(String collection, long count) {
+        collection(collection).evicted.inc(count);
+    }
+
+    /*
+    Approximate number of open items of a collection: the items this node created minus the items it emitted or dropped.
+    The TimeoutCheck replaces it with the stored count on every run, which adds what the other nodes did.
+     */
+    public long openItems(String collection) {
+        return Math.max(0, collection(collection).open.get());
+    }
+
+    public void openItemsCounted(String collection, long count) {
+        collection(collection).open.set(count);
+    }
+
+    /*
+    The counters are looked up once per collection, most of them are updated for every matched message.
+     */
+    private CollectionMetrics collection(String collection) {
+        CollectionMetrics metrics = collections.get(collection);
+        if (metrics == null) {
+            metrics = collections.computeIfAbsent(collection, name -> new CollectionMetrics(metricRegistry, name));
+        }
+        return metrics;
+    }
+
+    public Timer.Context time(String operation) {
+        return metricRegistry.timer(name(PREFIX, "mongo", operation)).time();
+    }
+
+    /*
+    Replaces a gauge registered before, e.g. by a previous write-behind buffer.
+     */
+    public void gauge(String gauge, Gauge<?> value) {
+        String metric = name(PREFIX, gauge);
+        metricRegistry.remove(metric);
+        metricRegistry.register(metric, value);
+    }
+
+    private static final class CollectionMetrics {
+        private final Counter matched;
+        private final Counter created;
+        private final Counter completed;
+        private final Counter timedOut;
+        private final Counter dropped;
+        private final Counter refused;
+        private final Counter rejected;
+        private final Counter evicted;
+        private final Counter snapshots;
+        private final AtomicLong open = new AtomicLong();
+
+        private CollectionMetrics(MetricRegistry metricRegistry, String collection) {
+            // Dots would add levels to the metric name and break the Prometheus mapping
+            String prefix = name(PREFIX, "collections", collection.replace('.', '_'));
+            this.matched = metricRegistry.counter(name(prefix, "matched"));
+            this.created = metricRegistry.counter(name(prefix, "created"));
+            this.completed = metricRegistry.counter(name(prefix, "completed"));
+            this.timedOut = metricRegistry.counter(name(prefix, "timed-out"));
+            this.dropped = metricRegistry.counter(name(prefix, "dropped"));
+            this.refused = metricRegistry.counter(name(prefix, "refused"));
+            this.rejected = metricRegistry.counter(name(prefix, "rejected"));
+            this.evicted = metricRegistry.counter(name(prefix, "evicted"));
+            this.snapshots = metricRegistry.counter(name(prefix, "snapshots"));
+        }
+    }
+}
@@ -17,31 +17,21 @@
 
 package de.netuse.graylog.context_collector.context;
 
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
-import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
-import org.graylog2.bindings.providers.ClusterEventBusProvider;
-import org.graylog2.bindings.providers.MongoJackObjectMapperProvider;
-import org.graylog2.cluster.ClusterConfigChangedEvent;
-import org.graylog2.database.MongoConnection;
 import org.graylog2.plugin.Message;
-import org.graylog2.plugin.cluster.ClusterConfigService;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.outputs.MessageOutput;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
 import org.graylog2.plugin.streams.Stream;
-import org.graylog2.shared.utilities.AutoValueUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.inject.Inject;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 /*
 This defines the Output that takes Messages that are to be process by the Context Collector.
@@ -49,50 +39,23 @@ This defines the Output that takes Messages that are to be process by the Contex
 public class ContextCollectorOutput implements MessageOutput {
     private static final Logger LOG = LoggerFactory.getLogger(ContextCollectorOutput.class);
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
-    private AtomicReference<ContextCollectorProcessor> processor = new AtomicReference<>();
-
-    private final ClusterConfigService clusterConfigService;
-    private final MongoConnection mongoConnection;
-    private final MongoJackObjectMapperProvider mapperProvider;
-    private final ContextCollectorCommunicationService queueProvider;
+    private final ContextCollectorProcessor processor;
 
+    /*
+    The processor is shared by all outputs of the node, it follows configuration changes on its own.
+     */
     @Inject
-    public ContextCollectorOutput(
-            final MongoConnection mongoConnection,
-            final MongoJackObjectMapperProvider mapperProvider,
-            final ClusterConfigService clusterConfigService,
-            final ContextCollectorCommunicationService queueProvider,
-            final ClusterEventBusProvider clusterEventBusProvider,
-            final EventBus serverEventBus) throws MessageOutputConfigurationException, IOException {
+    public ContextCollectorOutput(final ContextCollectorProcessor processor) throws MessageOutputConfigurationException {
         LOG.info("Initializing");
         isRunning.set(true);
-
-        this.clusterConfigService = clusterConfigService;
-        this.mongoConnection = mongoConnection;
-        this.mapperProvider = mapperProvider;
-        this.queueProvider = queueProvider;
-        serverEventBus.register(this);
-
-        final PluginConfigurationV2 configuration = clusterConfigService.getOrDefault(PluginConfigurationV2.class, PluginConfigurationV2.createDefault());
-        processor.set(new ContextCollectorProcessor(mongoConnection, mapperProvider, queueProvider, configuration));
-
-    }
-
-    @Subscribe
-    public void handleUpdatedClusterConfig(ClusterConfigChangedEvent clusterConfigChangedEvent) throws Exception{
-        if (!clusterConfigChangedEvent.type().equals(AutoValueUtils.getCanonicalName((PluginConfigurationV2.class)))) {
-            return;
-        }
-        LOG.info("Config changed, reload processor");
-        final PluginConfigurationV2 configuration = clusterConfigService.getOrDefault(PluginConfigurationV2.class, PluginConfigurationV2.createDefault());
-        processor.set(new ContextCollectorProcessor(mongoConnection, mapperProvider, queueProvider, configuration));
+        this.processor = processor;
     }
 
-
     @Override
     public void stop() {
         isRunning.set(false);
         LOG.info("Stopping");
+        processor.flush();
     }
 
     @Override
@@ -103,19 +66,26 @@ public class ContextCollectorOutput implements MessageOutput {
     @Override
     public void write(Message message) throws Exception {
         //Mumsie, what's a feedback loop?
-        if (message.hasField("log.logger") && message.getField("log.logger").toString().equals("ContextCollector")) {
+        if (isCollectedMessage(message)) {
             return;
         }
-        processor.get().processMessage(message);
+        processor.processMessage(message);
 
     }
 
     @Override
     public void write(List<Message> messages) throws Exception {
+        List<Message> relevant = new ArrayList<>(messages.size());
         for (Message message : messages) {
-            write(message);
+            if (!isCollectedMessage(message)) {
+                relevant.add(message);
+            }
         }
+        processor.processMessages(relevant);
+    }
 
+    public static boolean isCollectedMessage(Message message) {
+        return message.hasField("log.logger") && message.getField("log.logger").toString().equals("ContextCollector");
     }
 
     @FactoryClass
@@ -17,96 +17,416 @@
 
 package de.netuse.graylog.context_collector.context;
 
-import com.antkorwin.xsync.XSync;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
 import com.mongodb.WriteConcern;
 import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
 import org.bson.Document;
 import org.bson.Transformer;
-import org.graylog2.bindings.providers.MongoJackObjectMapperProvider;
 import org.graylog2.database.MongoConnection;
 import org.graylog2.plugin.Message;
-import org.graylog2.shared.bindings.providers.ObjectMapperProvider;
+import org.graylog2.system.shutdown.GracefulShutdownService;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.mongojack.DBQuery;
-import org.mongojack.JacksonDBCollection;
-import org.mongojack.WriteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import javax.annotation.Nullable;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /*
 @desc This processor consumes messages sent to Context Collector Outputs. It checks whether a message matches a CollectionConfiguration and if so
 creates or updates a CollectionItem. If all fields are collected, the Item is dispatched to the Input queue.
 Since processor run in parallel (localy and globaly), to do these operations reliably they best need to sequence all DB reads and writes concerning the same CollectionItem.
-CollectionItems are identified by an ID constructed by computing SHA256(key_field_name + key_field_value).
+CollectionItems are identified by an ID constructed from the configuration name and the key field names and values, see CollectionIds.
+In cluster mode every id has an owner node, see KeyOwnership, which keeps the item in its write-behind buffer.
+Fields for ids owned by other nodes are written to the database directly, where the owner reads them back.
  */
+@Singleton
 public class ContextCollectorProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(ContextCollectorProcessor.class);
-    List<CollectionConfiguration> collection_configurations = null;
     final static String collectionName = "contextcollector_collections";
-    private  JacksonDBCollection<CollectionItem, String> set_collection;
-    private ArrayBlockingQueue<CollectionItem> queue;
-    private XSync<String> xSync;
+    private CollectionItemQueue queue;
+    private final CollectionItemLocks locks;
+    private final CollectionItemStore store;
+    private final CollectionConfigurationRegistry registry;
+    private volatile WriteBehindBuffer writeBehindBuffer;
+    private volatile ProcessingLanes lanes;
+    private volatile UpdateMode updateMode;
+    private volatile IdScheme idScheme;
+    private volatile boolean clusterMode;
+    // Guarded by this
+    private boolean stopped;
+    private final KeyOwnership ownership;
+    private final ContextCollectorMetrics metrics;
+    private static final long OPEN_ITEMS_CACHE_SECONDS = 30;
+
+
+    @Inject
+    public ContextCollectorProcessor(MongoConnection mongoConnection, ContextCollectorCommunicationService queueProvider, CollectionConfigurationRegistry registry,
+                                     KeyOwnership ownership, ContextCollectorMetrics metrics,
+                                     GracefulShutdownService shutdownService) {
+        this(createStore(mongoConnection), queueProvider, registry, ownership, metrics);
+        shutdownService.register(this::stop);
+    }
 
-    MongoJackObjectMapperProvider mapperProvider;
+    /*
+    Takes any store, the benchmarks and simulations under src/perf run the processor against an in-memory store.
+     */
+    ContextCollectorProcessor(CollectionItemStore store, ContextCollectorCommunicationService queueProvider, CollectionConfigurationRegistry registry,
+                              KeyOwnership ownership, ContextCollectorMetrics metrics) {
+        this.store = new InstrumentedCollectionItemStore(store, metrics);
+        this.metrics = metrics;
+        metrics.gauge("open-items", new CachedGauge<Long>(OPEN_ITEMS_CACHE_SECONDS, TimeUnit.SECONDS) {
+            @Override
+            protected Long loadValue() {
+                return store.count();
+            }
+        });
+        metrics.gauge("buffered-items", (Gauge<Integer>) () -> {
+            WriteBehindBuffer buffer = writeBehindBuffer;
+            return buffer == null ? 0 : buffer.size();
+        });
+        this.registry = registry;
+        this.queue = queueProvider.getQueue();
+        this.locks = queueProvider.getLocks();
+        this.ownership = ownership;
+        registry.addListener(this::applySettings);
+        ownership.addListener(this::handleRingChange);
+    }
 
+    private static CollectionItemStore createStore(MongoConnection mongoConnection) {
+        MongoCollectionItemStore store = new MongoCollectionItemStore(mongoConnection);
+        store.createIndexes();
+        return store;
+    }
 
-    ContextCollectorProcessor(MongoConnection mongoConnection, MongoJackObjectMapperProvider mapperProvider, ContextCollectorCommunicationService queueProvider, PluginConfigurationV2 pluginConfiguration) throws IOException {
-        this.mapperProvider = mapperProvider;
+    /*
+    The processor lives as long as the node, settings changes only replace the write-behind buffer
+    when the update mode or the buffer settings changed.
+     */
+    private synchronized void applySettings(ConfigurationSnapshot snapshot) {
+        if (stopped) {
+            return;
+        }
+        PluginConfigurationV2 pluginConfiguration = snapshot.pluginConfiguration();
+        this.updateMode = pluginConfiguration.updateMode();
+        this.idScheme = pluginConfiguration.idScheme();
+        this.clusterMode = pluginConfiguration.clusterMode();
+        applyLanes(pluginConfiguration.processingLanes());
+
+        WriteBehindBuffer previous = writeBehindBuffer;
+        if (pluginConfiguration.updateMode() == UpdateMode.WRITE_BEHIND || pluginConfiguration.clusterMode()) {
+            if (previous != null && previous.hasSettings(pluginConfiguration.writeBehindBufferSize(),
+                    pluginConfiguration.writeBehindFlushInterval())) {
+                return;
+            }
+            writeBehindBuffer = new WriteBehindBuffer(store, this::emit, this::emitExpired, metrics, ownership.localNodeId(),
+                    pluginConfiguration.writeBehindBufferSize(), pluginConfiguration.writeBehindFlushInterval());
+        } else {
+            writeBehindBuffer = null;
+        }
+        if (previous != null) {
+            previous.stop();
+        }
+    }
 
-        final DBCollection dbCollection = mongoConnection.getDatabase().getCollection(collectionName);
-        this.set_collection = JacksonDBCollection.wrap(dbCollection, CollectionItem.class, String.class, mapperProvider.get());
-        this.set_collection.createIndex(new BasicDBObject("invalid_after", 1));
-        ObjectMapper mapper = new ObjectMapperProvider().get();
+    /*
+    Only called by applySettings, which holds the same lock as stop(), so no lanes are started after shutdown.
+    A batch that still picked up the replaced lanes runs on the calling thread, see ProcessingLanes.
+     */
+    private void applyLanes(int laneCount) {
+        ProcessingLanes previous = lanes;
+        if (previous != null && previous.lanes() == laneCount) {
+            return;
+        }
+        lanes = laneCount > 1 ? new ProcessingLanes(laneCount) : null;
+        if (previous != null) {
+            previous.stop();
+        }
+    }
 
-        if (pluginConfiguration.loadConfigurationFromFile()) {
-            collection_configurations = Arrays.asList(mapper.readValue(Paths.get(pluginConfiguration.collectionConfigurationsPath()).toFile(),CollectionConfiguration[].class))
-                    .stream().filter(c -> c.enabled()).collect(Collectors.toList());
-        } else {
+    /*
+    Called on graceful shutdown of the node. Buffered fields are written to the database and the journal is
+    closed, items finished afterwards stay in the database for the timeout check of the next start.
+     */
+    synchronized void stop() {
+        stopped = true;
+        // Messages still arriving are written to the database directly.
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        writeBehindBuffer = null;
+        if (buffer != null) {
+            buffer.stop();
+        }
+        ProcessingLanes processingLanes = lanes;
+        lanes = null;
+        if (processingLanes != null) {
+            processingLanes.stop();
+        }
+        queue.close();
+    }
 
-            collection_configurations = pluginConfiguration.collectionConfigurations().stream().filter(c -> c.enabled()).collect(Collectors.toList());
+    /*
+    Writes pending buffered fields to the database, called when an output stops.
+     */
+    void flush() {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            buffer.flushSafely();
         }
+    }
 
-        this.queue = queueProvider.getQueue();
-        this.xSync = queueProvider.getSync();
+    /*
+    Ids owned by another node are only dropped from the buffer, their buffered fields are written to the database
+    where the new owner picks them up.
+     */
+    private void handleRingChange(ConsistentHashRing ring) {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null && clusterMode) {
+            buffer.release(id -> !ownership.localNodeId().equals(ring.owner(id)));
+        }
     }
 
+    void processMessage(Message message) {
+        if (clusterMode) {
+            processMessages(Collections.singletonList(message));
+            return;
+        }
+        for (CompiledConfiguration.Extraction extraction : registry.snapshot().index().match(message)) {
+            metrics.matched(extraction.configuration());
+            updateFromMessage(CollectionIds.construct(idScheme, extraction), extraction);
+        }
+    }
 
-    void processMessage(Message message) throws NoSuchAlgorithmException {
-        for (CollectionConfiguration configuration : collection_configurations) {
-            if (has_key_fields(message, configuration.key_fields())) {
-                updateFromMessage(message, configuration);
+    void processMessages(List<Message> messages) {
+        ConfigurationIndex index = registry.snapshot().index();
+        List<CompiledConfiguration.Extraction> extractions = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            for (CompiledConfiguration.Extraction extraction : index.match(message)) {
+                metrics.matched(extraction.configuration());
+                extractions.add(extraction);
             }
         }
+        processExtractions(extractions);
+    }
+
+    String id(CompiledConfiguration.Extraction extraction) {
+        return CollectionIds.construct(idScheme, extraction);
     }
 
-    private boolean has_key_fields(Message message, List<String> key_fields) {
-        return key_fields.stream().allMatch(message::hasField);
+    /*
+    Takes the matched fields of a batch, from the outputs or from the context_collect pipeline function.
+    A batch is coalesced by CollectionItem id first, messages sharing a key are merged in memory in the order they
+    arrived. In atomic mode all items are written with one unordered bulk write and read back with one query to
+    decide completeness. In read-modify-write mode each item is read and written once per batch.
+     */
+    void processExtractions(List<CompiledConfiguration.Extraction> extractions) {
+        processExtractions(extractions, null);
     }
 
-    private  void updateFromMessage(Message message, CollectionConfiguration configuration) throws NoSuchAlgorithmException {
-        String id = constructId(message, configuration);
+    /*
+    Read-modify-write updates run on the given lanes when no processing lanes are configured.
+     */
+    void processExtractions(List<CompiledConfiguration.Extraction> extractions, @Nullable ProcessingLanes defaultLanes) {
+        if (clusterMode) {
+            processClustered(extractions);
+            return;
+        }
+        ProcessingLanes processingLanes = lanes;
+        if (processingLanes == null) {
+            processingLanes = defaultLanes;
+        }
+        if (updateMode == UpdateMode.READ_MODIFY_WRITE && processingLanes != null && writeBehindBuffer == null) {
+            processOnLanes(coalesce(extractions), processingLanes);
+            return;
+        }
+        if (updateMode != UpdateMode.ATOMIC) {
+            for (Map.Entry<String, List<CompiledConfiguration.Extraction>> item : coalesce(extractions).entrySet()) {
+                updateFromMessages(item.getKey(), item.getValue());
+            }
+            return;
+        }
+
+        long now = Instant.now().getEpochSecond();
+        Map<String, CollectionItemUpdate> updates = new LinkedHashMap<>();
+        for (CompiledConfiguration.Extraction extraction : extractions) {
+            String id = CollectionIds.construct(idScheme, extraction);
+            updates.computeIfAbsent(id, key -> new CollectionItemUpdate(key, extraction.configuration(), now))
+                    .merge(extraction, now);
+        }
+        upsertCoalesced(updates, now);
+    }
+
+    /*
+    Writes coalesced updates with one bulk write and emits the items that are complete afterwards.
+     */
+    private void upsertCoalesced(Map<String, CollectionItemUpdate> updates, long now) {
+        refuseNewItems(updates);
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        store.upsertAll(updates.values());
+        for (CollectionItem item : store.findByIds(updates.keySet())) {
+            CollectionConfiguration configuration = updates.get(item.id()).configuration();
+            if (configuration.isComplete(item)) {
+                claimAndEmit(item.id(), configuration, now);
+            }
+        }
+    }
+
+    /*
+    Groups the extractions by CollectionItem id, keeping the order they arrived in.
+     */
+    private Map<String, List<CompiledConfiguration.Extraction>> coalesce(List<CompiledConfiguration.Extraction> extractions) {
+        Map<String, List<CompiledConfiguration.Extraction>> items = new LinkedHashMap<>();
+        for (CompiledConfiguration.Extraction extraction : extractions) {
+            items.computeIfAbsent(CollectionIds.construct(idScheme, extraction), id -> new ArrayList<>(1)).add(extraction);
+        }
+        return items;
+    }
+
+    /*
+    The ids are built on the calling thread, the updates run on the processing lanes. Each CollectionItem is
+    updated once on one lane. Returns when every lane finished.
+     */
+    private void processOnLanes(Map<String, List<CompiledConfiguration.Extraction>> items, ProcessingLanes processingLanes) {
+        processingLanes.run(new ArrayList<>(items.entrySet()), Map.Entry::getKey,
+                item -> updateFromMessages(item.getKey(), item.getValue()));
+    }
+
+    /*
+    Owned ids are merged into the local buffer. The others are coalesced by id and written to the database with
+    one bulk write, the owner reads the fields back on its next flush or on expiry. Sending them to the owner
+    through cluster events cost a database write per event as well, arrived up to a second late and was lost when
+    the owner stopped meanwhile. Only the owner's share of the ids, 1/N with N nodes, is buffered; the rest costs
+    one bulk write and one read per batch.
+     */
+    private void processClustered(List<CompiledConfiguration.Extraction> extractions) {
+        long now = Instant.now().getEpochSecond();
+        ConsistentHashRing ring = ownership.ring();
+        Map<String, CollectionItemUpdate> others = new LinkedHashMap<>();
+        for (CompiledConfiguration.Extraction extraction : extractions) {
+            String id = CollectionIds.construct(idScheme, extraction);
+            if (ownership.localNodeId().equals(ring.owner(id))) {
+                updateFromMessage(id, extraction);
+            } else {
+                others.computeIfAbsent(id, key -> new CollectionItemUpdate(key, extraction.configuration(), now))
+                        .merge(extraction, now);
+            }
+        }
+        if (!others.isEmpty()) {
+            upsertForOwners(others, now);
+        }
+    }
+
+    /*
+    Only the owner emits an item, it may hold fields in its buffer that were not written yet. Items that look
+    complete here are due one flush interval later instead of at their timeout: an owner holding unwritten fields
+    flushes them before and completes the item on the read back, otherwise the TimeoutCheck emits it.
+     */
+    private void upsertForOwners(Map<String, CollectionItemUpdate> updates, long now) {
+        refuseNewItems(updates);
+        if (updates.isEmpty()) {
+            return;
+        }
 
-        xSync.execute(id, () -> {
+        store.upsertAll(updates.values());
+        List<String> complete = new ArrayList<>();
+        for (CollectionItem item : store.findByIds(updates.keySet())) {
+            if (updates.get(item.id()).configuration().isComplete(item)) {
+                complete.add(item.id());
+            }
+        }
+        if (!complete.isEmpty()) {
+            long flushSeconds = TimeUnit.MILLISECONDS.toSeconds(registry.snapshot().pluginConfiguration().writeBehindFlushInterval());
+            store.expireBy(complete, now + flushSeconds + 1);
+        }
+    }
+
+    /*
+    A collection at its open item limit with the REFUSE policy only takes fields for items that are already open.
+    Finding out needs a read, which only happens at the limit.
+     */
+    private boolean admit(String id, CollectionConfiguration configuration) {
+        if (!refusesNewItems(configuration)) {
+            return true;
+        }
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if ((buffer != null && buffer.contains(id)) || store.find(id) != null) {
+            return true;
+        }
+        metrics.refused(configuration);
+        return false;
+    }
+
+    /*
+    Removes the updates that would open a new item beyond the limit of their collection, with one read for the batch.
+     */
+    private void refuseNewItems(Map<String, CollectionItemUpdate> updates) {
+        List<String> limited = new ArrayList<>();
+        for (CollectionItemUpdate update : updates.values()) {
+            if (refusesNewItems(update.configuration())) {
+                limited.add(update.id());
+            }
+        }
+        if (limited.isEmpty()) {
+            return;
+        }
+        Set<String> open = new HashSet<>();
+        for (CollectionItem item : store.findByIds(limited)) {
+            open.add(item.id());
+        }
+        for (String id : limited) {
+            if (!open.contains(id)) {
+                metrics.refused(updates.remove(id).configuration());
+            }
+        }
+    }
+
+    private boolean refusesNewItems(CollectionConfiguration configuration) {
+        return configuration.limitsOpenItems() && configuration.open_items_policy() == OpenItemsPolicy.REFUSE
+                && metrics.openItems(configuration.name()) >= configuration.max_open_items();
+    }
+
+    private  void updateFromMessage(String id, CompiledConfiguration.Extraction extraction) {
+        updateFromMessages(id, Collections.singletonList(extraction));
+    }
+
+    /*
+    Applies the extractions of one CollectionItem, in read-modify-write mode with one read and one write.
+     */
+    private void updateFromMessages(String id, List<CompiledConfiguration.Extraction> extractions) {
+        CollectionConfiguration configuration = extractions.get(0).configuration();
+        if (!admit(id, configuration)) {
+            return;
+        }
+
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            for (CompiledConfiguration.Extraction extraction : extractions) {
+                buffer.merge(id, extraction, Instant.now().getEpochSecond());
+            }
+            return;
+        }
+
+        if (updateMode == UpdateMode.ATOMIC) {
+            updateAtomic(id, extractions);
+            return;
+        }
+
+        locks.execute(id, () -> {
             CollectionItem item;
-            item = getCollectionItem(id);
+            item = store.find(id);
 
             if (item == null) {
-                item = createCollectionItem(id, configuration, message);
+                item = createCollectionItem(id, extractions.get(0));
             }
 
             if (item == null) {
@@ -114,10 +434,8 @@ public class ContextCollectorProcessor {
                 return;
             }
 
-            for (String field : configuration.value_fields()) {
-                if (message.hasField(field)) {
-                    item.collected_fields().put(field, message.getField(field));
-                }
+            for (CompiledConfiguration.Extraction extraction : extractions) {
+                extraction.putFields(item.collected_fields());
             }
 
             /*
@@ -130,24 +448,21 @@ public class ContextCollectorProcessor {
             will yield hasAllFields() to be false. When both nodes send their update to the
             Database the fields will be merged, but complete remain false.
 
-            This is why the TimeoutCheck rebuilds the complete field with hasAllFields().
+            This is why the TimeoutCheck rebuilds the complete field with isComplete().
             */
 
-            boolean complete = configuration.hasAllFields(item);
+            boolean complete = configuration.isComplete(item);
             item = item.toBuilder()
                     .complete(complete)
-                    .invalid_after(Instant.now().getEpochSecond() + configuration.timeout())
+                    .invalid_after(Instant.now().getEpochSecond() + configuration.timeoutSeconds())
                     .collection_end(Instant.now().getEpochSecond())
                     .build();
 
-            if (item.complete() && queue.remainingCapacity() > 0) {
-                LOG.debug("All fields collected and queue not full, writing");
-                set_collection.remove(DBQuery.is("_id", item.id()));
-                try {
-                    queue.put(item);
-                } catch (InterruptedException e) {
-                    LOG.error("Unable to put CollectionItem into queue: ", e.getMessage(), e);
-                }
+            CollectionItemQueue.Handoff handoff = item.complete() ? queue.offer(item) : null;
+            if (handoff != null && handoff != CollectionItemQueue.Handoff.WRITE_BACK) {
+                LOG.debug("All fields collected and handed to the queue, removing");
+                metrics.handedOff(item, handoff, false);
+                store.remove(item.id());
             } else {
                 /*
                     If for some reason complete message are not consumed fast enough,
@@ -156,76 +471,79 @@ public class ContextCollectorProcessor {
                     And that would be a shame.
                  */
                 if(item.complete()) {
-                    LOG.warn("Writing complete item back to database, Queue has no capacity");
-                }
-                Document updateFields = new Document();
-                updateFields.append("invalid_after", item.invalid_after());
-                updateFields.append("complete", item.complete());
-                for ( Map.Entry<String, Object> set: item.collected_fields().entrySet()) {
-                    updateFields.append("collected_fields."+set.getKey(), set.getValue());
-                }
-                BasicDBObject setQuery = new BasicDBObject();
-                setQuery.append("$set", updateFields);
-                WriteResult<CollectionItem, String> result = set_collection.update(new BasicDBObject("_id", item.id()), setQuery, false, false);
-                if (!result.wasAcknowledged()) {
-                    LOG.error("Update of CollectionItem was not acknowledged.");
+                    LOG.debug("Writing complete item back to database, Queue has no capacity");
                 }
+                store.update(item);
             }
         });
     }
 
-    private boolean hasCollectionItem(String collection_id) {
-        return set_collection.getCount(DBQuery.is("_id", collection_id)) > 0;
-    }
-
-    private CollectionItem createCollectionItem(String collection_id, CollectionConfiguration configuration, Message message) {
+    /*
+    Merges the message with a single upsert. The database applies $setOnInsert and $set atomically,
+    so neither the node local lock nor a prior read is needed. Concurrent updates from other nodes are
+    part of the returned item, which is why completeness is decided on it.
+    Only the node that claims a complete item emits it.
+     */
+    private void updateAtomic(String id, List<CompiledConfiguration.Extraction> extractions) {
+        CollectionConfiguration configuration = extractions.get(0).configuration();
         long now = Instant.now().getEpochSecond();
-        HashMap<String, Object> fields = new HashMap<String, Object>();
-        for (String field : configuration.key_fields()) {
-            if (message.hasField(field)) {
-                fields.put(field, message.getField(field));
-            }
+        CollectionItemUpdate update = new CollectionItemUpdate(id, configuration, now);
+        for (CompiledConfiguration.Extraction extraction : extractions) {
+            update.merge(extraction, now);
         }
 
-        CollectionItem item = CollectionItem.create(collection_id,
-                configuration.name(),
-                now + configuration.timeout(),
-                fields,
-                now,
-                now,
-                false);
+        CollectionItem item = store.upsertAndGet(update).item();
+        if (configuration.isComplete(item)) {
+            claimAndEmit(id, configuration, now);
+        }
+    }
 
-        WriteResult<CollectionItem, String> result = set_collection.update(DBQuery.is("_id", collection_id), item, true, false);
-        if (!result.wasAcknowledged()) {
-            LOG.error("Creation of CollectionItem was not acknowledged.");
+    private void claimAndEmit(String id, CollectionConfiguration configuration, long now) {
+        CollectionItem claimed = store.claim(id, ownership.localNodeId(), now);
+        if (claimed != null) {
+            emit(claimed.toBuilder()
+                    .complete(configuration.isComplete(claimed))
+                    .collection_end(now)
+                    .build());
         }
-        return item;
     }
 
+    private void emit(CollectionItem item) {
+        emit(item, false);
+    }
 
-    private CollectionItem getCollectionItem(String id) {
-        return set_collection.findOne(DBQuery.is("_id", id));
+    private void emitExpired(CollectionItem item) {
+        emit(item, true);
     }
 
-    private String constructId(Message message, CollectionConfiguration configuration) throws NoSuchAlgorithmException {
-        String id = configuration.name() +
-                    configuration.key_fields().stream()
-                            .sorted().map(name ->  name + message.getField(name).toString())
-                            .collect(Collectors.joining());
-        MessageDigest digest = MessageDigest.getInstance("SHA256");
-        return bytesToHex(digest.digest(id.getBytes(StandardCharsets.UTF_8)));
+    /*
+    Items the queue has no room for go back to the database, the timeout check drains them later.
+     */
+    private void emit(CollectionItem item, boolean timedOut) {
+        CollectionItemQueue.Handoff handoff = queue.offer(item);
+        if (handoff == CollectionItemQueue.Handoff.WRITE_BACK) {
+            LOG.debug("Writing complete item back to database, Queue has no capacity");
+            store.writeBack(item, registry.snapshot().configuration(item.name()));
+            return;
+        }
+        metrics.handedOff(item, handoff, timedOut);
     }
 
+    private CollectionItem createCollectionItem(String collection_id, CompiledConfiguration.Extraction extraction) {
+        CollectionConfiguration configuration = extraction.configuration();
+        long now = Instant.now().getEpochSecond();
+        HashMap<String, Object> fields = new HashMap<String, Object>();
+        extraction.putKeyFields(fields);
 
-    //Courtesy of SO 9655181
-    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-    public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
-        }
-        return new String(hexChars);
+        CollectionItem item = CollectionItem.create(collection_id,
+                configuration.name(),
+                now + configuration.timeoutSeconds(),
+                fields,
+                now,
+                now,
+                false);
+
+        store.create(item);
+        return item;
     }
 }
@@ -17,117 +17,349 @@
 
 package de.netuse.graylog.context_collector.context;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.eventbus.Subscribe;
-import com.mongodb.DBCollection;
 import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
-import org.graylog2.bindings.providers.MongoJackObjectMapperProvider;
-import org.graylog2.cluster.ClusterConfigChangedEvent;
+import org.graylog2.cluster.leader.LeaderElectionService;
 import org.graylog2.database.MongoConnection;
-import org.graylog2.plugin.cluster.ClusterConfigService;
 import org.graylog2.plugin.periodical.Periodical;
-import org.graylog2.shared.bindings.providers.ObjectMapperProvider;
-import org.graylog2.shared.utilities.AutoValueUtils;
-import org.mongojack.DBQuery;
-import org.mongojack.JacksonDBCollection;
+import org.graylog2.plugin.system.NodeId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.antkorwin.xsync.XSync;
 
 import jakarta.inject.Inject;
 
-import java.io.IOException;
-import java.nio.file.Paths;
+import javax.annotation.Nullable;
+
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /*
 @desc This periodical checks the database for CollectionItems that timed out and puts them into the queue for the Input.
+It runs on every node. Each run leases batches of expired items to this node, so the nodes share the expiry work and
+every node emits through its own Input. Migrating legacy ids is left to the leader.
+A batch is read in invalid_after order. Each item is removed before it is handed to the queue, only if it is still
+leased to this node, and the removed version is emitted. Every batch is leased from the time it is claimed, not from
+the start of the run.
+Every run also corrects the live open item count of the collections with an open item limit. The leader evicts the
+items above the limit of evicting collections through the same path as expired items.
+Items that outlived the lifetime of their collection are closed the same way, even if they keep receiving messages,
+and collections keeping snapshots get a copy of their open items emitted every snapshot interval.
  */
 public class ContextCollectorTimeoutCheck extends Periodical {
     private static final Logger LOG = LoggerFactory.getLogger(ContextCollectorTimeoutCheck.class);
-    private JacksonDBCollection<CollectionItem, String> set_collection;
-    private ArrayBlockingQueue<CollectionItem> queue;
-    private XSync<String> xSync;
-    private List<CollectionConfiguration> collection_configurations;
-    private final ClusterConfigService clusterConfigService;
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    static final int SWEEP_BATCH_SIZE = 1000;
+    static final long LEASE_SECONDS = 60;
+    private static final long LOCK_TIMEOUT_MILLIS = 5000;
+    private final CollectionItemStore store;
+    private CollectionItemQueue queue;
+    private final CollectionItemLocks locks;
+    private final CollectionConfigurationRegistry registry;
+    private ConfigurationSnapshot snapshot;
+    private boolean legacyIdsMigrated = false;
+    private int expired;
+    private boolean queueFull;
+    private final NodeId nodeId;
+    private final LeaderElectionService leaderElectionService;
+    private final ContextCollectorMetrics metrics;
 
     @Inject
     ContextCollectorTimeoutCheck(final MongoConnection mongoConnection,
-                                 final MongoJackObjectMapperProvider mapperProvider,
                                  final ContextCollectorCommunicationService queueProvider,
-                                 final ClusterConfigService clusterConfigService) {
-        final DBCollection dbCollection = mongoConnection.getDatabase().getCollection(ContextCollectorProcessor.collectionName);
-        this.set_collection = JacksonDBCollection.wrap(dbCollection, CollectionItem.class, String.class, mapperProvider.get());
+                                 final CollectionConfigurationRegistry registry,
+                                 final NodeId nodeId,
+                                 final LeaderElectionService leaderElectionService,
+                                 final ContextCollectorMetrics metrics) {
+        this(new MongoCollectionItemStore(mongoConnection), queueProvider, registry, nodeId, leaderElectionService, metrics);
+    }
+
+    ContextCollectorTimeoutCheck(final CollectionItemStore store,
+                                 final ContextCollectorCommunicationService queueProvider,
+                                 final CollectionConfigurationRegistry registry,
+                                 final NodeId nodeId,
+                                 final LeaderElectionService leaderElectionService,
+                                 final ContextCollectorMetrics metrics) {
+        this.store = new InstrumentedCollectionItemStore(store, metrics);
+        this.metrics = metrics;
         queue = queueProvider.getQueue();
-        xSync = queueProvider.getSync();
-        this.clusterConfigService = clusterConfigService;
+        this.locks = queueProvider.getLocks();
+        this.registry = registry;
+        this.nodeId = nodeId;
+        this.leaderElectionService = leaderElectionService;
     }
 
     @Override
     public void doRun() {
-        try {
-            ObjectMapper mapper = new ObjectMapperProvider().get();
-            PluginConfigurationV2 pluginConfiguration = this.clusterConfigService.getOrDefault(de.netuse.graylog.context_collector.config.PluginConfigurationV2.class, de.netuse.graylog.context_collector.config.PluginConfigurationV2.createDefault());
-            if (pluginConfiguration.loadConfigurationFromFile()) {
-                this.collection_configurations = Arrays.asList(mapper.readValue(Paths.get(pluginConfiguration.collectionConfigurationsPath()).toFile(), CollectionConfiguration[].class))
-                        .stream().filter(c -> c.enabled()).collect(Collectors.toList());;
-            } else {
-                this.collection_configurations = pluginConfiguration.collectionConfigurations()
-                                                .stream().filter(c -> c.enabled()).collect(Collectors.toList());;
-            }
-        } catch (IOException e) {
-            LOG.error("Unable to load configuration, aborting run", e.getMessage(), e);
-            return;
+        snapshot = registry.snapshot();
+        PluginConfigurationV2 pluginConfiguration = snapshot.pluginConfiguration();
+
+        if (pluginConfiguration.idScheme() == IdScheme.COMPACT && !legacyIdsMigrated && leaderElectionService.isLeader()) {
+            migrateLegacyIds();
+        } else if (pluginConfiguration.idScheme() != IdScheme.COMPACT) {
+            legacyIdsMigrated = false;
         }
 
         long now = Instant.now().getEpochSecond();
-        for (CollectionItem item : set_collection.find(DBQuery.lessThan("invalid_after", now))) {
-            if (queue.remainingCapacity() == 0) {
-                LOG.warn("Queue is full, prematurely breaking TimeoutCheck run");
+        long started = System.nanoTime();
+        boolean lockItems = pluginConfiguration.updateMode() == UpdateMode.READ_MODIFY_WRITE && !pluginConfiguration.clusterMode();
+        expired = 0;
+        queueFull = false;
+        List<CollectionItem> batch;
+        do {
+            long leased = leaseStart();
+            batch = store.claimExpired(leased, nodeId.getNodeId(), SWEEP_BATCH_SIZE, LEASE_SECONDS);
+            if (lockItems) {
+                if (!expireLocked(batch, leased, item -> item.invalid_after() < leased)) {
+                    break;
+                }
+            } else {
+                expireAll(batch, leased, item -> item.invalid_after() < leased);
+            }
+            if (queueFull) {
                 break;
             }
+        } while (batch.size() == SWEEP_BATCH_SIZE);
 
-            xSync.execute(item.id(), () -> {
-                CollectionConfiguration configuration = getConfiguration(item);
-                if (configuration == null){
-                    LOG.warn("Did not find configuration for "+item.name());
-                    set_collection.remove(DBQuery.is("_id", item.id()));
-                    return;
-                }
+        limitOpenItems(lockItems);
+        closeLongRunning(now, lockItems);
 
-                CollectionItem updated = item
-                                            .toBuilder()
-                                            .complete(configuration.hasAllFields(item))
-                                            .collection_end(now)
-                                            .build();
+        if (expired > 0) {
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            LOG.info("Expired {} CollectionItems in {} ms ({} items/s)", expired, millis, expired * 1000L / millis);
+        }
+    }
 
-                set_collection.remove(DBQuery.is("_id", item.id()));
+    /*
+    Eviction only runs on the leader, otherwise every node would evict the same excess.
+     */
+    private void limitOpenItems(boolean lockItems) {
+        boolean leader = leaderElectionService.isLeader();
+        for (CollectionConfiguration configuration : snapshot.configurations()) {
+            if (!configuration.limitsOpenItems()) {
+                continue;
+            }
+            long open = store.count(configuration.name());
+            metrics.openItemsCounted(configuration.name(), open);
+            if (leader && configuration.open_items_policy() != OpenItemsPolicy.REFUSE && !queueFull) {
+                evict(configuration, open - configuration.max_open_items(), lockItems);
+            }
+        }
+    }
 
-                if (!item.complete() && configuration.drop_incomplete()) {
-                    return;
+    private void evict(CollectionConfiguration configuration, long excess, boolean lockItems) {
+        boolean byLastUpdate = configuration.open_items_policy() == OpenItemsPolicy.EVICT_LEAST_RECENT;
+        int before = expired;
+        while (excess > 0 && !queueFull) {
+            long leased = leaseStart();
+            List<CollectionItem> batch = store.claimOldest(configuration.name(), byLastUpdate, leased, nodeId.getNodeId(),
+                    (int) Math.min(excess, SWEEP_BATCH_SIZE), LEASE_SECONDS);
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (lockItems) {
+                if (!expireLocked(batch, leased, item -> true)) {
+                    break;
                 }
+            } else {
+                expireAll(batch, leased, item -> true);
+            }
+            excess -= batch.size();
+        }
+        if (expired > before) {
+            metrics.evicted(configuration.name(), expired - before);
+            LOG.info("Evicted {} CollectionItems of {} above its limit of {} open items", expired - before,
+                    configuration.name(), configuration.max_open_items());
+        }
+    }
+
+    private void closeLongRunning(long now, boolean lockItems) {
+        for (CollectionConfiguration configuration : snapshot.configurations()) {
+            long lifetime = configuration.lifetimeSeconds();
+            if (lifetime > 0) {
+                closeStartedBefore(configuration, now - lifetime, lockItems);
+            }
+            if (configuration.keepsSnapshots()) {
+                takeSnapshots(configuration, now);
+            }
+        }
+    }
+
+    private void closeStartedBefore(CollectionConfiguration configuration, long started, boolean lockItems) {
+        int before = expired;
+        List<CollectionItem> batch;
+        do {
+            if (queueFull) {
+                break;
+            }
+            long leased = leaseStart();
+            batch = store.claimStartedBefore(configuration.name(), started, leased, nodeId.getNodeId(), SWEEP_BATCH_SIZE, LEASE_SECONDS);
+            if (lockItems) {
+                if (!expireLocked(batch, leased, item -> item.collection_start() < started)) {
+                    break;
+                }
+            } else {
+                expireAll(batch, leased, item -> item.collection_start() < started);
+            }
+        } while (batch.size() == SWEEP_BATCH_SIZE);
+        if (expired > before) {
+            LOG.info("Closed {} CollectionItems of {} at the end of their lifetime", expired - before, configuration.name());
+        }
+    }
 
-                try {
-                    queue.put(updated);
-                } catch (InterruptedException e) {
-                    LOG.error("Unable to put CollectionItem into queue: ", e.getMessage(), e);
+    /*
+    A snapshot is a copy of the open item, the item keeps its fields and its lease ends once the copy was handed off.
+    If the queue is full the rest of the batch keeps its lease and is tried again once it ran out.
+     */
+    private void takeSnapshots(CollectionConfiguration configuration, long now) {
+        List<CollectionItem> batch;
+        do {
+            if (queueFull) {
+                break;
+            }
+            batch = store.claimSnapshotDue(configuration.name(), now - configuration.snapshot_interval(), leaseStart(),
+                    nodeId.getNodeId(), SWEEP_BATCH_SIZE, LEASE_SECONDS);
+            List<String> taken = new ArrayList<>(batch.size());
+            for (CollectionItem item : batch) {
+                CollectionItemQueue.Handoff handoff = queue.offer(item.toBuilder()
+                        .complete(configuration.isComplete(item))
+                        .collection_end(now)
+                        .snapshot(true)
+                        .build());
+                if (handoff == CollectionItemQueue.Handoff.WRITE_BACK) {
+                    queueFull = true;
+                    break;
+                }
+                if (handoff == CollectionItemQueue.Handoff.QUEUED) {
+                    metrics.snapshot(configuration.name());
                 }
+                taken.add(item.id());
+            }
+            store.snapshotTaken(taken, now);
+        } while (batch.size() == SWEEP_BATCH_SIZE);
+    }
 
-            });
+    /*
+    In read-modify-write mode the processor updates items holding their node local lock. Each item of the batch is
+    taken out of the database under its own lock, so fields the processor wrote since the batch was claimed are
+    emitted too, and a message arriving later opens a new item. The lock covers nothing but that removal, the
+    handoff to the queue happens after it. Returns false if a lock could not be taken.
+     */
+    private boolean expireLocked(List<CollectionItem> batch, long now, Predicate<CollectionItem> due) {
+        CollectionItem[] taken = new CollectionItem[1];
+        for (CollectionItem item : batch) {
+            try {
+                boolean locked = locks.tryExecute(item.id(), LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS,
+                        () -> taken[0] = take(item, now, due));
+                if (!locked) {
+                    LOG.warn("Unable to lock expired CollectionItem {}, leaving the batch for a later run", CollectionIds.display(item.id()));
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!handOff(taken[0], now)) {
+                break;
+            }
         }
+        return true;
     }
 
-    private CollectionConfiguration getConfiguration(CollectionItem item) {
-        for (CollectionConfiguration configuration : this.collection_configurations) {
-            if (item.name().equals(configuration.name())) {
-                return configuration;
+    private void expireAll(List<CollectionItem> batch, long now, Predicate<CollectionItem> due) {
+        for (CollectionItem item : batch) {
+            if (!handOff(take(item, now, due), now)) {
+                break;
             }
         }
-        return null;
+    }
+
+    /*
+    Removes the item before it is handed off, so exactly the removed version, with the fields written since the
+    batch was claimed, is emitted and no later update keeps it open. Only items still leased by this batch are
+    removed, null is returned for items emitted meanwhile or whose lease was lost. Items that are no longer due are
+    put back right away, they're swept again once they are due and their lease ran out.
+     */
+    @Nullable
+    private CollectionItem take(CollectionItem item, long now, Predicate<CollectionItem> due) {
+        CollectionItem removed = store.removeClaimed(item.id(), nodeId.getNodeId(), now + LEASE_SECONDS);
+        if (removed != null && !due.test(removed)) {
+            store.writeBack(removed, getConfiguration(removed));
+            return null;
+        }
+        return removed;
+    }
+
+    /*
+    Returns false if the queue had no room, the item is then written back. The remaining items of the batch keep
+    their lease and are swept again once it ran out.
+     */
+    private boolean handOff(@Nullable CollectionItem item, long now) {
+        if (item == null) {
+            return true;
+        }
+        if (!expire(item, now)) {
+            LOG.warn("Queue is full, prematurely breaking TimeoutCheck run");
+            store.writeBack(item, getConfiguration(item));
+            queueFull = true;
+            return false;
+        }
+        expired++;
+        return true;
+    }
+
+    /*
+    Hands the item to the queue unless it is dropped. Returns false if the queue had no room,
+    the item then stays in the database.
+    The caller removed the item from the database before.
+     */
+    private boolean expire(CollectionItem item, long now) {
+        CollectionConfiguration configuration = getConfiguration(item);
+        if (configuration == null){
+            LOG.warn("Did not find configuration for "+item.name());
+            metrics.dropped(item.name());
+            return true;
+        }
+
+        CollectionItem updated = item
+                                    .toBuilder()
+                                    .complete(configuration.isComplete(item))
+                                    .collection_end(now)
+                                    .build();
+
+        if (!item.complete() && configuration.drop_incomplete()) {
+            metrics.dropped(item.name());
+            return true;
+        }
+
+        CollectionItemQueue.Handoff handoff = queue.offer(updated);
+        metrics.handedOff(updated, handoff, true);
+        return handoff != CollectionItemQueue.Handoff.WRITE_BACK;
+    }
+
+    /*
+    A run can take long with many batches, each batch is leased from the time it is claimed, so its lease does not run
+    out while it is handed off. The batch passes the same time on to removeClaimed.
+     */
+    private static long leaseStart() {
+        return Instant.now().getEpochSecond();
+    }
+
+    /*
+    Items created before switching to compact ids are moved to their new id in batches, one batch per run,
+    so messages arriving for them after the switch keep adding to the same item.
+     */
+    private void migrateLegacyIds() {
+        int migrated = store.migrateLegacyIds(snapshot.byName(), MIGRATION_BATCH_SIZE);
+        if (migrated > 0) {
+            LOG.info("Migrated " + migrated + " CollectionItems to compact ids");
+        }
+        legacyIdsMigrated = migrated < MIGRATION_BATCH_SIZE;
+    }
+
+    private CollectionConfiguration getConfiguration(CollectionItem item) {
+        return snapshot.configuration(item.name());
     }
 
     @Override
@@ -144,7 +376,7 @@ public class ContextCollectorTimeoutCheck extends Periodical {
     }
     @Override
     public  boolean masterOnly() {
-        return true;
+        return false;
     }
     @Override
     public  boolean startOnThisNode() {
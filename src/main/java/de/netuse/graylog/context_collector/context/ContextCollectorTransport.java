@@ -15,11 +15,16 @@
  * <http://www.mongodb.com/licensing/server-side-public-license>.
  */
 
+
 package de.netuse.graylog.context_collector.context;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import org.graylog2.plugin.configuration.Configuration;
@@ -27,40 +32,111 @@ import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
-import org.graylog2.plugin.inputs.transports.GeneratorTransport;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.inputs.transports.Transport;
 import org.graylog2.plugin.journal.RawMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import static com.codahale.metrics.MetricRegistry.name;
 
-public class ContextCollectorTransport extends GeneratorTransport {
+/*
+@desc Part of the Input, this transport drains finished CollectionItems from the queue in batches and hands them to the input.
+A single worker thread waits for the first item, takes every item queued by then up to BATCH_SIZE, encodes them and
+passes them on. When many items time out at once they're handed over without a wakeup per item.
+ */
+public class ContextCollectorTransport implements Transport {
     private static final Logger LOG = LoggerFactory.getLogger(ContextCollectorTransport.class);
+    static final int BATCH_SIZE = 512;
+    private static final long POLL_INTERVAL = 500;
+    private static final long STOP_TIMEOUT = 5000;
 
     private final ObjectMapper objectMapper;
-    private ArrayBlockingQueue<CollectionItem> queue;
+    private final CollectionItemQueue queue;
+    private final MetricRegistry localRegistry = new MetricRegistry();
+    private final Meter emitted = localRegistry.meter(name(ContextCollectorTransport.class, "emitted"));
+    private final Histogram batchSize = localRegistry.histogram(name(ContextCollectorTransport.class, "batch-size"));
+    private ExecutorService worker;
+    private volatile boolean running;
 
     @AssistedInject
-    public ContextCollectorTransport(@Assisted Configuration configuration, EventBus eventBus, ObjectMapper objectMapper, ContextCollectorCommunicationService queueProvider) {
-        super(eventBus, configuration);
+    public ContextCollectorTransport(@Assisted Configuration configuration, ObjectMapper objectMapper, ContextCollectorCommunicationService queueProvider) {
         this.objectMapper = objectMapper;
-        queue = queueProvider.getQueue();
+        this.queue = queueProvider.getQueue();
+    }
+
+    @Override
+    public void setMessageAggregator(CodecAggregator aggregator) {
+    }
+
+    @Override
+    public synchronized void launch(MessageInput input) {
+        running = true;
+        worker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("context-collector-transport-%d")
+                .build());
+        worker.execute(() -> run(input));
+    }
+
+    private void run(MessageInput input) {
+        List<CollectionItem> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                queue.drainTo(batch, BATCH_SIZE, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // stop() interrupts the worker, nothing was taken from the queue.
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            for (CollectionItem item : batch) {
+                try {
+                    input.processRawMessage(new RawMessage(encode(item)));
+                } catch (JsonProcessingException e) {
+                    LOG.error("Unable to serialize CollectionItem ", e.getMessage(), e);
+                }
+            }
+            queue.acknowledge();
+            emitted.mark(batch.size());
+            batchSize.update(batch.size());
+            batch.clear();
+        }
+    }
+
+    byte[] encode(CollectionItem item) throws JsonProcessingException {
+        byte[] payload = CollectionItemEncoding.encode(item);
+        return payload != null ? payload : objectMapper.writeValueAsBytes(item);
     }
 
     @Override
-    protected RawMessage produceRawMessage(MessageInput input) {
+    public synchronized void stop() {
+        running = false;
+        if (worker == null) {
+            return;
+        }
+        worker.shutdownNow();
         try {
-            CollectionItem item = queue.take();
-            final byte[] payload = objectMapper.writeValueAsBytes(item);
-            return new RawMessage(payload);
+            if (!worker.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Context collector transport did not stop in time");
+            }
         } catch (InterruptedException e) {
-            LOG.error("Unable to put CollectionItem into queue: ", e.getMessage(), e);
-        } catch ( JsonProcessingException e) {
-            LOG.error("Unable to serialize CollectionItem ", e.getMessage(), e);
+            Thread.currentThread().interrupt();
         }
-        return null;
+        worker = null;
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        return localRegistry;
     }
 
 
@@ -74,11 +150,10 @@ public class ContextCollectorTransport extends GeneratorTransport {
     }
 
     @ConfigClass
-    public static class Config extends GeneratorTransport.Config {
+    public static class Config implements Transport.Config {
         @Override
         public ConfigurationRequest getRequestedConfiguration() {
-            final ConfigurationRequest c = super.getRequestedConfiguration();
-            return c;
+            return new ConfigurationRequest();
         }
     }
 }
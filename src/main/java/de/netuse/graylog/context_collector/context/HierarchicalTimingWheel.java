@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+@desc Hierarchical timing wheel for in-memory timeouts with millisecond deadlines.
+Each wheel has wheelSize buckets of tickMillis, timeouts beyond its range go to an overflow wheel whose tick is the
+whole range of the wheel below. Advancing visits only the buckets whose time passed, timeouts from an overflow bucket
+are moved down into the finer wheels until they fire. Scheduling and cancelling are O(1).
+
+Not thread safe, callers synchronize.
+ */
+public class HierarchicalTimingWheel<T> {
+
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Bucket<T> bucket;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T item() {
+            return item;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+
+        // Returns false if the timeout already fired or was cancelled.
+        private boolean cancel() {
+            if (bucket == null) {
+                return false;
+            }
+            bucket.remove(this);
+            return true;
+        }
+    }
+
+    private static final class Bucket<T> {
+        private final Timeout<T> head = new Timeout<>(null, 0);
+
+        Bucket() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.previous = head.previous;
+            timeout.next = head;
+            head.previous.next = timeout;
+            head.previous = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            timeout.previous.next = timeout.next;
+            timeout.next.previous = timeout.previous;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void drainTo(List<Timeout<T>> target) {
+            while (head.next != head) {
+                Timeout<T> timeout = head.next;
+                remove(timeout);
+                target.add(timeout);
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long interval;
+    private final Bucket<T>[] buckets;
+    private long currentTime;
+    private HierarchicalTimingWheel<T> overflow;
+    private int size;
+
+    public HierarchicalTimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.wheelSize = Math.max(2, wheelSize);
+        this.interval = this.tickMillis * this.wheelSize;
+        this.currentTime = startMillis - (startMillis % this.tickMillis);
+        @SuppressWarnings("unchecked")
+        Bucket<T>[] buckets = new Bucket[this.wheelSize];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket<>();
+        }
+        this.buckets = buckets;
+    }
+
+    /*
+    Deadlines that passed already fire on the next advance().
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> timeout = new Timeout<>(item, deadline);
+        if (!add(timeout)) {
+            buckets[bucketIndex(currentTime)].add(timeout);
+        }
+        size++;
+        return timeout;
+    }
+
+    public void cancel(Timeout<T> timeout) {
+        if (timeout != null && timeout.cancel()) {
+            size--;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+    Fires every timeout with a deadline up to now, in bucket order.
+     */
+    public void advance(long now, Consumer<T> expired) {
+        List<Timeout<T>> due = new ArrayList<>();
+        collect(now, due);
+        for (Timeout<T> timeout : due) {
+            if (timeout.deadline > now) {
+                if (!add(timeout)) {
+                    buckets[bucketIndex(currentTime)].add(timeout);
+                }
+                continue;
+            }
+            size--;
+            expired.accept(timeout.item);
+        }
+    }
+
+    private boolean add(Timeout<T> timeout) {
+        if (timeout.deadline < currentTime + tickMillis) {
+            return false;
+        }
+        if (timeout.deadline < currentTime + interval) {
+            buckets[bucketIndex(timeout.deadline)].add(timeout);
+            return true;
+        }
+        if (overflow == null) {
+            overflow = new HierarchicalTimingWheel<>(interval, wheelSize, currentTime);
+        }
+        return overflow.add(timeout);
+    }
+
+    private void collect(long now, List<Timeout<T>> due) {
+        // The bucket of the current tick holds timeouts scheduled with a deadline in the past.
+        buckets[bucketIndex(currentTime)].drainTo(due);
+        if (now >= currentTime + tickMillis) {
+            long ticks = Math.min((now - currentTime) / tickMillis, wheelSize);
+            for (long tick = 1; tick <= ticks; tick++) {
+                buckets[bucketIndex(currentTime + tick * tickMillis)].drainTo(due);
+            }
+            currentTime = now - (now % tickMillis);
+        }
+        if (overflow != null) {
+            overflow.collect(now, due);
+        }
+    }
+
+    private int bucketIndex(long time) {
+        return (int) ((time / tickMillis) % wheelSize);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+@desc Selects how CollectionItem ids are constructed.
+SHA256_HEX hashes the concatenated key field names and values and stores the 64 character hex string as _id.
+COMPACT hashes a typed binary encoding of the key values and stores the first 16 bytes of the digest as binary _id.
+ */
+public enum IdScheme {
+    @JsonProperty("sha256_hex")
+    SHA256_HEX,
+    @JsonProperty("compact")
+    COMPACT
+}
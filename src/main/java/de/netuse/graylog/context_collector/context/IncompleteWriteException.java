@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import java.util.List;
+
+/*
+@desc Thrown by CollectionItemStore.upsertAll when part of the batch was written. Only the failed updates have to be
+sent again, the others are applied.
+ */
+public class IncompleteWriteException extends RuntimeException {
+    private final List<CollectionItemUpdate> failed;
+
+    public IncompleteWriteException(List<CollectionItemUpdate> failed, Throwable cause) {
+        super(failed.size() + " CollectionItem updates failed: " + cause.getMessage(), cause);
+        this.failed = failed;
+    }
+
+    public List<CollectionItemUpdate> failed() {
+        return failed;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Timer;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/*
+@desc CollectionItemStore that times every operation of the wrapped store and counts the items it created.
+ */
+public class InstrumentedCollectionItemStore implements CollectionItemStore {
+    private final CollectionItemStore store;
+    private final ContextCollectorMetrics metrics;
+
+    public InstrumentedCollectionItemStore(CollectionItemStore store, ContextCollectorMetrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem find(String id) {
+        try (Timer.Context ignored = metrics.time("find")) {
+            return store.find(id);
+        }
+    }
+
+    @Override
+    public void create(CollectionItem item) {
+        try (Timer.Context ignored = metrics.time("create")) {
+            store.create(item);
+        }
+        metrics.created(item.name());
+    }
+
+    @Override
+    public void update(CollectionItem item) {
+        try (Timer.Context ignored = metrics.time("update")) {
+            store.update(item);
+        }
+    }
+
+    @Override
+    public void writeBack(CollectionItem item, @Nullable CollectionConfiguration configuration) {
+        try (Timer.Context ignored = metrics.time("write-back")) {
+            store.writeBack(item, configuration);
+        }
+    }
+
+    @Override
+    public List<CollectionItemUpdate> upsertAll(Collection<CollectionItemUpdate> updates) {
+        List<CollectionItemUpdate> created;
+        try (Timer.Context ignored = metrics.time("upsert-all")) {
+            created = store.upsertAll(updates);
+        }
+        for (CollectionItemUpdate update : created) {
+            metrics.created(update.configuration().name());
+        }
+        return created;
+    }
+
+    @Override
+    public UpsertedItem upsertAndGet(CollectionItemUpdate update) {
+        UpsertedItem upserted;
+        try (Timer.Context ignored = metrics.time("upsert-and-get")) {
+            upserted = store.upsertAndGet(update);
+        }
+        if (upserted.created()) {
+            metrics.created(update.configuration().name());
+        }
+        return upserted;
+    }
+
+    @Override
+    public List<CollectionItem> findByIds(Collection<String> ids) {
+        try (Timer.Context ignored = metrics.time("find-by-ids")) {
+            return store.findByIds(ids);
+        }
+    }
+
+    @Override
+    public List<CollectionItem> claimExpired(long now, String node, int limit, long leaseSeconds) {
+        try (Timer.Context ignored = metrics.time("claim-expired")) {
+            return store.claimExpired(now, node, limit, leaseSeconds);
+        }
+    }
+
+    @Override
+    public List<CollectionItem> claimOldest(String name, boolean byLastUpdate, long now, String node, int limit, long leaseSeconds) {
+        try (Timer.Context ignored = metrics.time("claim-oldest")) {
+            return store.claimOldest(name, byLastUpdate, now, node, limit, leaseSeconds);
+        }
+    }
+
+    @Override
+    public List<CollectionItem> claimStartedBefore(String name, long started, long now, String node, int limit, long leaseSeconds) {
+        try (Timer.Context ignored = metrics.time("claim-started-before")) {
+            return store.claimStartedBefore(name, started, now, node, limit, leaseSeconds);
+        }
+    }
+
+    @Override
+    public List<CollectionItem> claimSnapshotDue(String name, long before, long now, String node, int limit, long leaseSeconds) {
+        try (Timer.Context ignored = metrics.time("claim-snapshot-due")) {
+            return store.claimSnapshotDue(name, before, now, node, limit, leaseSeconds);
+        }
+    }
+
+    @Override
+    public void snapshotTaken(Collection<String> ids, long now) {
+        try (Timer.Context ignored = metrics.time("snapshot-taken")) {
+            store.snapshotTaken(ids, now);
+        }
+    }
+
+    @Override
+    public void expireBy(Collection<String> ids, long invalidAfter) {
+        try (Timer.Context ignored = metrics.time("expire-by")) {
+            store.expireBy(ids, invalidAfter);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        try (Timer.Context ignored = metrics.time("remove")) {
+            store.remove(id);
+        }
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem removeClaimed(String id, String node, long claimUntil) {
+        try (Timer.Context ignored = metrics.time("remove-claimed")) {
+            return store.removeClaimed(id, node, claimUntil);
+        }
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem claim(String id, String node, long now) {
+        try (Timer.Context ignored = metrics.time("claim")) {
+            return store.claim(id, node, now);
+        }
+    }
+
+    @Override
+    public int migrateLegacyIds(Map<String, CollectionConfiguration> configurations, int limit) {
+        try (Timer.Context ignored = metrics.time("migrate-legacy-ids")) {
+            return store.migrateLegacyIds(configurations, limit);
+        }
+    }
+
+    @Override
+    public long count() {
+        try (Timer.Context ignored = metrics.time("count")) {
+            return store.count();
+        }
+    }
+
+    @Override
+    public long count(String name) {
+        try (Timer.Context ignored = metrics.time("count-collection")) {
+            return store.count(name);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.system.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+@desc Tracks which node owns which CollectionItem id, based on the active nodes reported by the ContextCollectorClusterHeartbeat.
+Until the first heartbeat this node owns every id, which is the same as running without cluster mode.
+Listeners are notified whenever the ring changed, so they can hand over state for ids they lost.
+ */
+@Singleton
+public class KeyOwnership {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyOwnership.class);
+
+    private final String localNodeId;
+    private final List<Consumer<ConsistentHashRing>> listeners = new CopyOnWriteArrayList<>();
+    private volatile ConsistentHashRing ring;
+
+    @Inject
+    public KeyOwnership(NodeId nodeId) {
+        this(nodeId.getNodeId());
+    }
+
+    KeyOwnership(String localNodeId) {
+        this.localNodeId = localNodeId;
+        this.ring = new ConsistentHashRing(Collections.singletonList(localNodeId));
+    }
+
+    public String localNodeId() {
+        return localNodeId;
+    }
+
+    public ConsistentHashRing ring() {
+        return ring;
+    }
+
+    public String owner(String id) {
+        return ring.owner(id);
+    }
+
+    public boolean isLocal(String id) {
+        return localNodeId.equals(ring.owner(id));
+    }
+
+    public void addListener(Consumer<ConsistentHashRing> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void updateNodes(Collection<String> activeNodes) {
+        TreeSet<String> nodes = new TreeSet<>(activeNodes);
+        nodes.add(localNodeId);
+        if (new ArrayList<>(nodes).equals(ring.nodes())) {
+            return;
+        }
+        ConsistentHashRing updated = new ConsistentHashRing(new ArrayList<>(nodes));
+        LOG.info("Context collector nodes changed to " + updated.nodes());
+        ring = updated;
+        for (Consumer<ConsistentHashRing> listener : listeners) {
+            listener.accept(updated);
+        }
+    }
+}
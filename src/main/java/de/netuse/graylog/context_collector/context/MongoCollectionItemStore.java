@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.graylog2.database.MongoConnection;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+@desc CollectionItemStore backed by the contextcollector_collections collection.
+Ids are converted with CollectionIds at this boundary, compact ids are stored as binary _id.
+ */
+public class MongoCollectionItemStore implements CollectionItemStore {
+    private static final Logger LOG = LoggerFactory.getLogger(MongoCollectionItemStore.class);
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int TYPE_MISMATCH = 14;
+    // Tokens of the last incrementing updates applied to an item, a retry older than these would count twice.
+    private static final int APPLIED_WRITES = 16;
+    private static final String INSERT_TOKEN = "insert_token";
+    private final MongoCollection<Document> collection;
+
+    public MongoCollectionItemStore(MongoConnection mongoConnection) {
+        this.collection = mongoConnection.getMongoDatabase().getCollection(ContextCollectorProcessor.collectionName);
+    }
+
+    public void createIndexes() {
+        collection.createIndex(Indexes.ascending("invalid_after"));
+        // Counts and evicts the items of collections with an open item limit.
+        collection.createIndex(Indexes.ascending("name", "collection_start"));
+        // Evicts by last update for EVICT_LEAST_RECENT.
+        collection.createIndex(Indexes.ascending("name", "collection_end"));
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem find(String id) {
+        Document document = collection.find(byId(id)).first();
+        return document == null ? null : toItem(document);
+    }
+
+    @Override
+    public void create(CollectionItem item) {
+        UpdateResult result = collection.replaceOne(byId(item.id()), toDocument(item), new ReplaceOptions().upsert(true));
+        if (!result.wasAcknowledged()) {
+            LOG.error("Creation of CollectionItem was not acknowledged.");
+        }
+    }
+
+    @Override
+    public void update(CollectionItem item) {
+        Document updateFields = new Document();
+        updateFields.append("invalid_after", item.invalid_after());
+        updateFields.append("complete", item.complete());
+        for (Map.Entry<String, Object> set : item.collected_fields().entrySet()) {
+            updateFields.append("collected_fields." + set.getKey(), toBson(set.getValue()));
+        }
+        UpdateResult result = collection.updateOne(byId(item.id()), new Document("$set", updateFields));
+        if (!result.wasAcknowledged()) {
+            LOG.error("Update of CollectionItem was not acknowledged.");
+        }
+    }
+
+    /*
+    Counts, sums, minima and maxima are combined with what was written since the claim, other fields are replaced.
+     */
+    @Override
+    public void writeBack(CollectionItem item, @Nullable CollectionConfiguration configuration) {
+        Document set = new Document()
+                .append("invalid_after", item.invalid_after())
+                .append("collection_end", item.collection_end())
+                .append("complete", item.complete());
+        Document inc = new Document();
+        Document min = new Document("collection_start", item.collection_start());
+        Document max = new Document();
+        for (Map.Entry<String, Object> field : item.collected_fields().entrySet()) {
+            Aggregation aggregation = configuration == null ? Aggregation.LAST : configuration.aggregation(field.getKey());
+            String path = "collected_fields." + field.getKey();
+            if (aggregation == Aggregation.FIRST) {
+                aggregation = Aggregation.LAST;
+            }
+            operator(aggregation, set, set, inc, min, max).append(path, toBson(field.getValue()));
+        }
+        Document update = new Document("$setOnInsert", new Document("name", item.name()))
+                .append("$min", min)
+                .append("$set", set)
+                .append("$unset", new Document("claimed_by", "").append("claim_until", ""));
+        if (!inc.isEmpty()) {
+            update.append("$inc", inc);
+        }
+        if (!max.isEmpty()) {
+            update.append("$max", max);
+        }
+        UpdateResult result = collection.updateOne(byId(item.id()), update, new UpdateOptions().upsert(true));
+        if (!result.wasAcknowledged()) {
+            LOG.error("Write back of CollectionItem was not acknowledged.");
+        }
+    }
+
+    @Override
+    public List<CollectionItemUpdate> upsertAll(Collection<CollectionItemUpdate> updates) {
+        List<CollectionItemUpdate> created = new ArrayList<>();
+        if (updates.isEmpty()) {
+            return created;
+        }
+        List<CollectionItemUpdate> ordered = new ArrayList<>(updates);
+        List<WriteModel<Document>> writes = new ArrayList<>(ordered.size());
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        for (CollectionItemUpdate update : ordered) {
+            writes.add(new UpdateOneModel<>(filter(update), toUpdate(update, false), upsert));
+        }
+        // Appended after the upserts, so the indexes of getUpserts() still point into ordered.
+        List<CollectionItemUpdate> owners = new ArrayList<>(ordered);
+        for (CollectionItemUpdate update : ordered) {
+            List<UpdateOneModel<Document>> firstFields = firstFieldUpdates(update);
+            writes.addAll(firstFields);
+            owners.addAll(Collections.nCopies(firstFields.size(), update));
+        }
+        BulkWriteResult result;
+        try {
+            result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            Set<CollectionItemUpdate> failed = new LinkedHashSet<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                CollectionItemUpdate update = owners.get(error.getIndex());
+                if (!recover(update, error.getCode())) {
+                    failed.add(update);
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new IncompleteWriteException(new ArrayList<>(failed), e);
+            }
+            result = e.getWriteResult();
+        }
+        if (!result.wasAcknowledged()) {
+            LOG.error("Bulk update of CollectionItems was not acknowledged.");
+            return created;
+        }
+        for (BulkWriteUpsert upserted : result.getUpserts()) {
+            created.add(ordered.get(upserted.getIndex()));
+        }
+        return created;
+    }
+
+    @Override
+    public UpsertedItem upsertAndGet(CollectionItemUpdate update) {
+        List<UpdateOneModel<Document>> firstFields = firstFieldUpdates(update);
+        if (!firstFields.isEmpty()) {
+            collection.bulkWrite(firstFields, new BulkWriteOptions().ordered(false));
+        }
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER);
+        Document document;
+        try {
+            document = collection.findOneAndUpdate(byId(update.id()), insertToken(toUpdate(update, false), update), options);
+        } catch (MongoServerException e) {
+            if (e.getCode() != TYPE_MISMATCH) {
+                throw e;
+            }
+            LOG.warn("Resetting counts and sums of CollectionItem {}, a stored value is not a number.", CollectionIds.display(update.id()));
+            document = collection.findOneAndUpdate(byId(update.id()), insertToken(toUpdate(update, true), update), options);
+        }
+        return UpsertedItem.create(toItem(document), update.writeToken().equals(document.getString(INSERT_TOKEN)));
+    }
+
+    /*
+    The returned document carries the write token of this update only if this update inserted it,
+    a single round trip cannot return the pre-image along with the stored item.
+     */
+    private static Document insertToken(Document changes, CollectionItemUpdate update) {
+        changes.get("$setOnInsert", Document.class).append(INSERT_TOKEN, update.writeToken());
+        return changes;
+    }
+
+    /*
+    A duplicate key on an incrementing update means the filter excluded the item because it already carries the
+    write token, the upsert then tried to insert it: the update was applied by an earlier attempt. Otherwise it
+    was a concurrent insert and the update is retried.
+    Counts and sums that hit a stored value which is not a number are reset to the value of the update, as if
+    the aggregation had just been configured. Retrying them unchanged would fail forever.
+     */
+    private boolean recover(CollectionItemUpdate update, int code) {
+        if (code == DUPLICATE_KEY && update.increments()) {
+            return collection.find(Filters.and(byId(update.id()), Filters.eq("applied_writes", update.writeToken())))
+                    .projection(Projections.include("_id")).first() != null;
+        }
+        if (code == TYPE_MISMATCH) {
+            LOG.warn("Resetting counts and sums of CollectionItem {}, a stored value is not a number.", CollectionIds.display(update.id()));
+            try {
+                collection.updateOne(filter(update), toUpdate(update, true), new UpdateOptions().upsert(true));
+                return true;
+            } catch (MongoException e) {
+                LOG.debug("Reset of CollectionItem {} failed: {}", CollectionIds.display(update.id()), e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<CollectionItem> findByIds(Collection<String> ids) {
+        List<CollectionItem> items = new ArrayList<>(ids.size());
+        if (ids.isEmpty()) {
+            return items;
+        }
+        for (Document document : collection.find(Filters.in("_id", toBsonIds(ids)))) {
+            items.add(toItem(document));
+        }
+        return items;
+    }
+
+    /*
+    The lease is taken with one updateMany on the candidate ids, repeating the lease condition so items another node
+    leased in between are left alone. The items leased by this run are the ones carrying this node and lease end.
+     */
+    @Override
+    public List<CollectionItem> claimExpired(long now, String node, int limit, long leaseSeconds) {
+        return claim(Filters.lt("invalid_after", now), "invalid_after", now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public List<CollectionItem> claimOldest(String name, boolean byLastUpdate, long now, String node, int limit, long leaseSeconds) {
+        return claim(Filters.eq("name", name), byLastUpdate ? "collection_end" : "collection_start", now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public List<CollectionItem> claimStartedBefore(String name, long started, long now, String node, int limit, long leaseSeconds) {
+        return claim(Filters.and(Filters.eq("name", name), Filters.lt("collection_start", started)),
+                "collection_start", now, node, limit, leaseSeconds);
+    }
+
+    /*
+    snapshot_at is only stored on items that had a snapshot.
+     */
+    @Override
+    public List<CollectionItem> claimSnapshotDue(String name, long before, long now, String node, int limit, long leaseSeconds) {
+        Bson due = Filters.or(Filters.lt("snapshot_at", before),
+                Filters.and(Filters.exists("snapshot_at", false), Filters.lt("collection_start", before)));
+        return claim(Filters.and(Filters.eq("name", name), due), "collection_start", now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public void snapshotTaken(Collection<String> ids, long now) {
+        if (!ids.isEmpty()) {
+            collection.updateMany(Filters.in("_id", toBsonIds(ids)), Updates.combine(Updates.set("snapshot_at", now),
+                    Updates.unset("claimed_by"), Updates.unset("claim_until")));
+        }
+    }
+
+    @Override
+    public void expireBy(Collection<String> ids, long invalidAfter) {
+        if (!ids.isEmpty()) {
+            collection.updateMany(Filters.in("_id", toBsonIds(ids)), Updates.min("invalid_after", invalidAfter));
+        }
+    }
+
+    private List<CollectionItem> claim(Bson filter, String order, long now, String node, int limit, long leaseSeconds) {
+        Bson claimable = Filters.and(filter,
+                Filters.or(Filters.exists("claim_until", false), Filters.lt("claim_until", now)));
+        List<Object> candidates = new ArrayList<>(limit);
+        for (Document document : collection.find(claimable).sort(Sorts.ascending(order))
+                .projection(Projections.include("_id")).limit(limit).batchSize(limit)) {
+            candidates.add(document.get("_id"));
+        }
+        List<CollectionItem> claimed = new ArrayList<>(candidates.size());
+        if (candidates.isEmpty()) {
+            return claimed;
+        }
+
+        long claimUntil = now + leaseSeconds;
+        collection.updateMany(Filters.and(Filters.in("_id", candidates), claimable),
+                Updates.combine(Updates.set("claimed_by", node), Updates.set("claim_until", claimUntil)));
+        for (Document document : collection.find(Filters.and(Filters.in("_id", candidates),
+                        Filters.eq("claimed_by", node), Filters.eq("claim_until", claimUntil)))
+                .projection(Projections.exclude("claimed_by", "claim_until"))
+                .sort(Sorts.ascending(order))
+                .batchSize(limit)) {
+            claimed.add(toItem(document));
+        }
+        return claimed;
+    }
+
+    @Override
+    public void remove(String id) {
+        collection.deleteOne(byId(id));
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem removeClaimed(String id, String node, long claimUntil) {
+        Document document = collection.findOneAndDelete(Filters.and(byId(id),
+                Filters.eq("claimed_by", node),
+                Filters.eq("claim_until", claimUntil)));
+        return document == null ? null : toItem(document);
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem claim(String id, String node, long now) {
+        Document document = collection.findOneAndDelete(Filters.and(byId(id), Filters.or(
+                Filters.exists("claim_until", false), Filters.lt("claim_until", now), Filters.eq("claimed_by", node))));
+        return document == null ? null : toItem(document);
+    }
+
+    @Override
+    public int migrateLegacyIds(Map<String, CollectionConfiguration> configurations, int limit) {
+        int migrated = 0;
+        for (Document document : collection.find(Filters.type("_id", BsonType.STRING)).limit(limit)) {
+            CollectionItem item = toItem(document);
+            CollectionConfiguration configuration = configurations.get(item.name());
+            if (configuration == null) {
+                // Left for the timeout check, which drops items without configuration.
+                continue;
+            }
+            String id = CollectionIds.construct(IdScheme.COMPACT, configuration, item.collected_fields()::get);
+            CollectionItemUpdate update = new CollectionItemUpdate(id, configuration, item.collection_start());
+            update.mergeFields(item.collected_fields(), item.collection_start(), item.collection_end());
+
+            upsertAll(Collections.singletonList(update));
+            collection.deleteOne(Filters.eq("_id", document.get("_id")));
+            migrated++;
+        }
+        return migrated;
+    }
+
+    @Override
+    public long count() {
+        return collection.estimatedDocumentCount();
+    }
+
+    @Override
+    public long count(String name) {
+        return collection.countDocuments(Filters.eq("name", name));
+    }
+
+    private static Bson byId(String id) {
+        return Filters.eq("_id", CollectionIds.toBson(id));
+    }
+
+    private static List<Object> toBsonIds(Collection<String> ids) {
+        List<Object> bsonIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            bsonIds.add(CollectionIds.toBson(id));
+        }
+        return bsonIds;
+    }
+
+    /*
+    Incrementing updates only match while the item doesn't carry their write token yet.
+     */
+    private static Bson filter(CollectionItemUpdate update) {
+        if (!update.increments()) {
+            return byId(update.id());
+        }
+        return Filters.and(byId(update.id()), Filters.ne("applied_writes", update.writeToken()));
+    }
+
+    static Document toUpdate(CollectionItemUpdate update, boolean resetIncrements) {
+        CollectionConfiguration configuration = update.configuration();
+        Document setOnInsert = new Document()
+                .append("name", configuration.name())
+                .append("collection_start", update.collectionStart())
+                .append("complete", false);
+        Document set = new Document()
+                .append("invalid_after", update.invalidAfter())
+                .append("collection_end", update.lastSeen());
+        Document inc = new Document();
+        Document min = new Document();
+        Document max = new Document();
+        for (Map.Entry<String, Object> field : update.fields().entrySet()) {
+            Document operator = operator(configuration.aggregation(field.getKey()), set, setOnInsert, inc, min, max);
+            if (operator == inc && resetIncrements) {
+                operator = set;
+            }
+            operator.append("collected_fields." + field.getKey(), toBson(field.getValue()));
+        }
+        Document result = new Document("$setOnInsert", setOnInsert).append("$set", set);
+        if (!inc.isEmpty()) {
+            result.append("$inc", inc);
+        }
+        if (update.increments()) {
+            result.append("$push", new Document("applied_writes",
+                    new Document("$each", Collections.singletonList(update.writeToken())).append("$slice", -APPLIED_WRITES)));
+        }
+        if (!min.isEmpty()) {
+            result.append("$min", min);
+        }
+        if (!max.isEmpty()) {
+            result.append("$max", max);
+        }
+        return result;
+    }
+
+    private static Document operator(Aggregation aggregation, Document set, Document setOnInsert, Document inc, Document min, Document max) {
+        switch (aggregation) {
+            case FIRST:
+                return setOnInsert;
+            case COUNT:
+            case SUM:
+                return inc;
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            default:
+                return set;
+        }
+    }
+
+    /*
+    FIRST fields are set by $setOnInsert when the update creates the item. On an existing item they're set by
+    a second update that only matches while the field is missing.
+     */
+    static List<UpdateOneModel<Document>> firstFieldUpdates(CollectionItemUpdate update) {
+        CollectionConfiguration configuration = update.configuration();
+        if (!configuration.aggregations().containsValue(Aggregation.FIRST)) {
+            return Collections.emptyList();
+        }
+        List<UpdateOneModel<Document>> updates = new ArrayList<>();
+        for (Map.Entry<String, Object> field : update.fields().entrySet()) {
+            if (configuration.aggregation(field.getKey()) == Aggregation.FIRST) {
+                String path = "collected_fields." + field.getKey();
+                updates.add(new UpdateOneModel<>(Filters.and(byId(update.id()), Filters.exists(path, false)),
+                        Updates.set(path, toBson(field.getValue()))));
+            }
+        }
+        return updates;
+    }
+
+    static Object toBson(Object value) {
+        if (value instanceof DateTime) {
+            return ((DateTime) value).toDate();
+        }
+        return value;
+    }
+
+    static Document toDocument(CollectionItem item) {
+        Document fields = new Document();
+        for (Map.Entry<String, Object> field : item.collected_fields().entrySet()) {
+            fields.append(field.getKey(), toBson(field.getValue()));
+        }
+        return new Document("_id", CollectionIds.toBson(item.id()))
+                .append("name", item.name())
+                .append("invalid_after", item.invalid_after())
+                .append("collected_fields", fields)
+                .append("collection_start", item.collection_start())
+                .append("collection_end", item.collection_end())
+                .append("complete", item.complete());
+    }
+
+    static CollectionItem toItem(Document document) {
+        Document collected = document.get("collected_fields", Document.class);
+        Map<String, Object> fields = collected == null ? new HashMap<>() : new HashMap<>(collected);
+        return CollectionItem.create(CollectionIds.fromBson(document.get("_id")),
+                document.getString("name"),
+                longValue(document, "invalid_after"),
+                fields,
+                longValue(document, "collection_start"),
+                longValue(document, "collection_end"),
+                Boolean.TRUE.equals(document.getBoolean("complete")));
+    }
+
+    private static long longValue(Document document, String key) {
+        Object value = document.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+}
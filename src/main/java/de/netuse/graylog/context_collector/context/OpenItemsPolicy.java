@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+@desc Selects what happens when a CollectionConfiguration reached its maximum number of open CollectionItems.
+REFUSE drops messages that would open a new item, refused messages are counted. Items that are already open keep collecting.
+EVICT_OLDEST and EVICT_LEAST_RECENT admit new items and let the TimeoutCheck expire the items above the limit early,
+ordered by collection_start or by collection_end. Evicted items are emitted like timed out items.
+ */
+public enum OpenItemsPolicy {
+    @JsonProperty("refuse")
+    REFUSE,
+    @JsonProperty("evict_oldest")
+    EVICT_OLDEST,
+    @JsonProperty("evict_least_recent")
+    EVICT_LEAST_RECENT
+}
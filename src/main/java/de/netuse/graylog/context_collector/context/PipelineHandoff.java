@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog2.system.shutdown.GracefulShutdownService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+@desc Hands the fields extracted by the context_collect pipeline function to the processor.
+Pipeline threads only put the extraction into a bounded queue and never wait, a full queue rejects it. Rejections
+are counted per collection and logged at most once per REJECTION_LOG_INTERVAL.
+One worker takes the queue in batches of up to BATCH_SIZE, so the database sees batches like from an output. In
+read-modify-write mode without configured processing lanes the batch runs on LANES lanes of its own, one database
+round trip per extraction would not keep up with the pipelines otherwise. A failed batch is tried MAX_ATTEMPTS
+times. When the store reports which updates failed only their extractions are sent again, otherwise extractions of
+collections that count or sum are dropped instead of retried, part of the batch may be written already.
+On shutdown the queued extractions are processed before the lanes stop.
+ */
+@Singleton
+public class PipelineHandoff {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineHandoff.class);
+    static final int CAPACITY = 65536;
+    static final int BATCH_SIZE = 512;
+    static final int LANES = 8;
+    static final int MAX_ATTEMPTS = 3;
+    private static final long POLL_INTERVAL = 500;
+    private static final long RETRY_DELAY = 1000;
+    private static final long STOP_TIMEOUT = 5000;
+    private static final long REJECTION_LOG_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private final BlockingQueue<CompiledConfiguration.Extraction> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final ContextCollectorProcessor processor;
+    private final ContextCollectorMetrics metrics;
+    private final ProcessingLanes lanes = new ProcessingLanes(LANES);
+    private final ExecutorService worker;
+    private final Meter rejected;
+    private final Meter failed;
+    private final Histogram batchSize;
+    private final AtomicLong rejectionLogged = new AtomicLong();
+
+    @Inject
+    public PipelineHandoff(ContextCollectorProcessor processor, ContextCollectorMetrics metrics, MetricRegistry metricRegistry,
+                           GracefulShutdownService shutdownService) {
+        this.processor = processor;
+        this.metrics = metrics;
+        this.rejected = metricRegistry.meter(name(PipelineHandoff.class, "rejected"));
+        this.failed = metricRegistry.meter(name(PipelineHandoff.class, "failed"));
+        this.batchSize = metricRegistry.histogram(name(PipelineHandoff.class, "batch-size"));
+        metricRegistry.register(name(PipelineHandoff.class, "depth"), (Gauge<Integer>) queue::size);
+        worker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("context-collector-pipeline-%d")
+                .build());
+        worker.execute(this::run);
+        shutdownService.register(this::stop);
+    }
+
+    /*
+    Returns false if the queue is full, the fields are not collected then.
+     */
+    public boolean offer(CompiledConfiguration.Extraction extraction) {
+        if (!queue.offer(extraction)) {
+            rejected.mark();
+            metrics.rejected(extraction.configuration());
+            long now = System.currentTimeMillis();
+            long logged = rejectionLogged.get();
+            if (now - logged >= REJECTION_LOG_INTERVAL && rejectionLogged.compareAndSet(logged, now)) {
+                LOG.warn("Pipeline handoff is full, rejecting messages for context collections, {} rejected so far",
+                        rejected.getCount());
+            }
+            return false;
+        }
+        metrics.matched(extraction.configuration());
+        return true;
+    }
+
+    private void run() {
+        List<CompiledConfiguration.Extraction> batch = new ArrayList<>(BATCH_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                CompiledConfiguration.Extraction first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            batchSize.update(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void process(List<CompiledConfiguration.Extraction> batch) throws InterruptedException {
+        List<CompiledConfiguration.Extraction> pending = batch;
+        for (int attempt = 1; ; attempt++) {
+            List<CompiledConfiguration.Extraction> retry;
+            try {
+                processor.processExtractions(pending, lanes);
+                return;
+            } catch (IncompleteWriteException e) {
+                retry = unwritten(pending, e);
+            } catch (Exception e) {
+                retry = repeatable(pending);
+                if (retry.size() < pending.size()) {
+                    failed.mark(pending.size() - retry.size());
+                    LOG.error("Dropping {} extractions of counting collections from pipelines, they may be written already: {}",
+                            pending.size() - retry.size(), e.getMessage(), e);
+                }
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                failed.mark(retry.size());
+                LOG.error("Dropping {} extractions from pipelines after {} attempts", retry.size(), attempt);
+                return;
+            }
+            LOG.warn("Unable to process {} extractions from pipelines, retrying", retry.size());
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY * attempt);
+            pending = retry;
+        }
+    }
+
+    /*
+    The extractions of the updates the store could not write.
+     */
+    private List<CompiledConfiguration.Extraction> unwritten(List<CompiledConfiguration.Extraction> batch, IncompleteWriteException e) {
+        Set<String> ids = new HashSet<>();
+        for (CollectionItemUpdate update : e.failed()) {
+            ids.add(update.id());
+        }
+        List<CompiledConfiguration.Extraction> unwritten = new ArrayList<>();
+        for (CompiledConfiguration.Extraction extraction : batch) {
+            if (ids.contains(processor.id(extraction))) {
+                unwritten.add(extraction);
+            }
+        }
+        return unwritten;
+    }
+
+    /*
+    The extractions that give the same item when applied twice.
+     */
+    private static List<CompiledConfiguration.Extraction> repeatable(List<CompiledConfiguration.Extraction> batch) {
+        List<CompiledConfiguration.Extraction> repeatable = new ArrayList<>(batch.size());
+        for (CompiledConfiguration.Extraction extraction : batch) {
+            if (!extraction.configuration().counts()) {
+                repeatable.add(extraction);
+            }
+        }
+        return repeatable;
+    }
+
+    /*
+    Called on graceful shutdown. The running batch is interrupted between attempts, the queued extractions are
+    processed on the calling thread before the lanes stop.
+     */
+    void stop() {
+        worker.shutdownNow();
+        try {
+            if (!worker.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Pipeline handoff did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<CompiledConfiguration.Extraction> batch = new ArrayList<>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+            try {
+                processor.processExtractions(batch, lanes);
+            } catch (Exception e) {
+                failed.mark(batch.size() + queue.size());
+                LOG.error("Dropping {} extractions from pipelines on shutdown: {}", batch.size() + queue.size(), e.getMessage(), e);
+                queue.clear();
+            }
+            batch.clear();
+        }
+        lanes.stop();
+    }
+}
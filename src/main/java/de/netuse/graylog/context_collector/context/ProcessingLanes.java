@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+@desc Runs the work of one batch on a fixed number of lanes. Each piece of work is assigned to a lane by the hash of its
+CollectionItem id and every lane runs its share in order, so the updates of one item keep the order of the batch
+while the lanes run concurrently. run() returns once all lanes finished. Lanes stopped while a batch is handed in,
+by a settings change or on shutdown, leave their share to the calling thread.
+Lanes run on virtual threads where the JVM supports them, otherwise on a pool with one thread per lane.
+ */
+public class ProcessingLanes {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessingLanes.class);
+    private final int lanes;
+    private final ExecutorService executor;
+
+    public ProcessingLanes(int lanes) {
+        this.lanes = Math.max(1, lanes);
+        this.executor = createExecutor(this.lanes);
+    }
+
+    private static ExecutorService createExecutor(int lanes) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Virtual threads are not available, using {} platform threads", lanes);
+            return Executors.newFixedThreadPool(lanes, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("context-collector-lane-%d")
+                    .build());
+        }
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+
+    public <T> void run(List<T> work, Function<T, String> id, Consumer<T> action) {
+        if (work.isEmpty()) {
+            return;
+        }
+        List<List<T>> shares = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            shares.add(new ArrayList<>());
+        }
+        for (T item : work) {
+            shares.get(Math.floorMod(id.apply(item).hashCode(), lanes)).add(item);
+        }
+
+        List<Future<?>> running = new ArrayList<>(lanes);
+        RuntimeException failure = null;
+        for (List<T> share : shares) {
+            if (share.isEmpty()) {
+                continue;
+            }
+            try {
+                running.add(executor.submit(() -> share.forEach(action)));
+            } catch (RejectedExecutionException e) {
+                try {
+                    share.forEach(action);
+                } catch (RuntimeException shareFailure) {
+                    if (failure == null) {
+                        failure = shareFailure;
+                    }
+                }
+            }
+        }
+        for (Future<?> lane : running) {
+            try {
+                lane.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the processing lanes", e);
+            } catch (ExecutionException e) {
+                // Wait for the other lanes anyway, the batch is only handed off when all of them finished.
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+    Running batches finish, the lanes take no new work.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+}
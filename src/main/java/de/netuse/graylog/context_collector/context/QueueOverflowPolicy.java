@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+@desc Selects what happens to a finished CollectionItem when the queue to the ContextCollectorInput is full.
+BLOCK waits up to the configured offer timeout for free space and writes the item back to the database if there is none.
+WRITE_BACK writes the item back to the database right away, the TimeoutCheck emits it later (the original behaviour).
+DROP discards the item, dropped items are counted.
+ */
+public enum QueueOverflowPolicy {
+    @JsonProperty("block")
+    BLOCK,
+    @JsonProperty("write_back")
+    WRITE_BACK,
+    @JsonProperty("drop")
+    DROP
+}
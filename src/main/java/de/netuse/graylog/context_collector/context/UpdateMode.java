@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+@desc Selects how the ContextCollectorProcessor writes CollectionItems to the database.
+READ_MODIFY_WRITE reads, merges and writes back every item per message (the original behaviour).
+ATOMIC merges every message with one server side upsert and decides completeness on the returned item.
+WRITE_BEHIND merges messages into a node local buffer and flushes dirty items periodically in batches.
+ */
+public enum UpdateMode {
+    @JsonProperty("read_modify_write")
+    READ_MODIFY_WRITE,
+    @JsonProperty("atomic")
+    ATOMIC,
+    @JsonProperty("write_behind")
+    WRITE_BEHIND
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.google.auto.value.AutoValue;
+
+/*
+@desc Result of CollectionItemStore.upsertAndGet: the item as stored after the update and whether the update created it.
+ */
+@AutoValue
+public abstract class UpsertedItem {
+    public abstract CollectionItem item();
+
+    public abstract boolean created();
+
+    public static UpsertedItem create(CollectionItem item, boolean created) {
+        return new AutoValue_UpsertedItem(item, created);
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+@desc Node local write-behind buffer for open CollectionItems.
+Messages are merged into the buffered item in memory, dirty items are flushed to the database in one batch
+every flush interval. After a flush the stored items are read back, which picks up the fields other nodes
+wrote for the same item, so completeness is decided on the merged state and not only on what this node saw.
+
+Items that are complete locally are claimed from the database right away and emitted. The buffer is bounded,
+when it is full the least recently updated item is written to the database and dropped from memory.
+
+Buffered items time out on a HierarchicalTimingWheel with ticks of TICK_MILLIS, which is well below the one second
+resolution of the stored timeouts and close enough for the millisecond timeouts of CollectionConfiguration.timeoutMillis().
+Other nodes might have seen an item later, so the stored item decides whether it really timed out.
+Items evicted from memory, or held by a node that stopped, are expired by the TimeoutCheck from the database.
+ */
+public class WriteBehindBuffer {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    private final CollectionItemStore store;
+    private final Consumer<CollectionItem> emitter;
+    private final Consumer<CollectionItem> expiredEmitter;
+    private final ContextCollectorMetrics metrics;
+    private final String node;
+    private final int maxItems;
+    private final long flushInterval;
+    // Insertion ordered, merge() moves an entry to the end, so the first entry is the least recently updated one.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+    // Expiring reads and claims items, on its own thread it doesn't delay the flushes.
+    private final ScheduledExecutorService expirer;
+    // Guarded by entries
+    private final HierarchicalTimingWheel<Entry> wheel;
+    // Guarded by entries, number of writes in flight per id and the completed entries waiting for them.
+    private final Map<String, Integer> writing = new HashMap<>();
+    private final Map<String, Entry> waiting = new HashMap<>();
+    // The expirer wakes once per tick, items expire up to one tick after their timeout.
+    static final long TICK_MILLIS = 50;
+    private static final int WHEEL_SIZE = 512;
+
+    private static class Entry {
+        final String id;
+        final CollectionConfiguration configuration;
+        // Everything known about the item, including the fields read back from the database.
+        final Map<String, Object> fields = new HashMap<>();
+        long collectionStart;
+        long lastSeen;
+        // Fields not yet written to the database.
+        CollectionItemUpdate pending;
+        // Updates whose write failed. They keep their write token and are sent again as they are, before pending.
+        final List<CollectionItemUpdate> retries = new ArrayList<>();
+        // Set once a flush wrote the item. If a later flush creates it, another node emitted it in between.
+        boolean written;
+        HierarchicalTimingWheel.Timeout<Entry> timeout;
+
+        Entry(String id, CollectionConfiguration configuration, long now) {
+            this.id = id;
+            this.configuration = configuration;
+            this.collectionStart = now;
+            this.lastSeen = now;
+        }
+    }
+
+    public WriteBehindBuffer(CollectionItemStore store, Consumer<CollectionItem> emitter, Consumer<CollectionItem> expiredEmitter,
+                             ContextCollectorMetrics metrics, String node, int maxItems, long flushInterval) {
+        this.store = store;
+        this.emitter = emitter;
+        this.expiredEmitter = expiredEmitter;
+        this.metrics = metrics;
+        this.node = node;
+        this.maxItems = Math.max(1, maxItems);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.wheel = new HierarchicalTimingWheel<>(TICK_MILLIS, WHEEL_SIZE, System.currentTimeMillis());
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("context-collector-write-behind-%d")
+                .build());
+        this.flusher.scheduleWithFixedDelay(this::flushSafely, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+        this.expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("context-collector-expiry-%d")
+                .build());
+        this.expirer.scheduleWithFixedDelay(this::expireSafely, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void merge(String id, CompiledConfiguration.Extraction extraction, long now) {
+        CollectionConfiguration configuration = extraction.configuration();
+        List<Entry> completed = new ArrayList<>();
+        List<CollectionItemUpdate> evicted = new ArrayList<>();
+
+        synchronized (entries) {
+            Entry entry = entries.remove(id);
+            if (entry == null) {
+                entry = new Entry(id, configuration, now);
+            }
+            entries.put(id, entry);
+
+            // Aggregated fields hold partial values, so only the fields of this message are merged into both.
+            CollectionItemUpdate delta = new CollectionItemUpdate(id, configuration, entry.collectionStart);
+            delta.merge(extraction, now);
+            if (entry.pending == null) {
+                entry.pending = delta;
+            } else {
+                entry.pending.mergeFields(delta.fields(), delta.collectionStart(), delta.lastSeen());
+            }
+            configuration.mergeFields(entry.fields, delta.fields());
+            entry.lastSeen = now;
+
+            if (configuration.isComplete(entry.fields)) {
+                entries.remove(id);
+                wheel.cancel(entry.timeout);
+                completeOrWait(entry, completed);
+            } else {
+                schedule(entry, deadline(entry, System.currentTimeMillis() + configuration.timeoutMillis()));
+            }
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxItems && eldest.hasNext()) {
+                Entry dropped = eldest.next();
+                eldest.remove();
+                wheel.cancel(dropped.timeout);
+                takeUnwritten(dropped, evicted);
+            }
+        }
+
+        if (!evicted.isEmpty()) {
+            LOG.debug("Write-behind buffer full, writing {} items to the database", evicted.size());
+            write(evicted);
+        }
+        for (Entry entry : completed) {
+            complete(entry, now);
+        }
+    }
+
+    /*
+    An item is not claimed while fields of it are being written, the upsert would create it again right after
+    the claim removed it, and the partial item would be emitted a second time on timeout. The completion waits
+    for the write instead, the thread finishing the last write of the id completes it.
+    Called with the entries lock held.
+     */
+    private void completeOrWait(Entry entry, List<Entry> completed) {
+        if (writing.containsKey(entry.id)) {
+            waiting.put(entry.id, entry);
+        } else {
+            completed.add(entry);
+        }
+    }
+
+    // Called with the entries lock held
+    private void takeUnwritten(Entry entry, List<CollectionItemUpdate> updates) {
+        for (CollectionItemUpdate retry : entry.retries) {
+            updates.add(retry);
+            startWriting(entry.id);
+        }
+        entry.retries.clear();
+        if (entry.pending != null) {
+            updates.add(entry.pending);
+            entry.pending = null;
+            startWriting(entry.id);
+        }
+    }
+
+    // Merges the fields that did not reach the database yet, on top of the stored ones.
+    private static void mergeUnwritten(Entry entry, Map<String, Object> fields) {
+        for (CollectionItemUpdate retry : entry.retries) {
+            entry.configuration.mergeFields(fields, retry.fields());
+        }
+        if (entry.pending != null) {
+            entry.configuration.mergeFields(fields, entry.pending.fields());
+        }
+    }
+
+    // Called with the entries lock held
+    private void startWriting(String id) {
+        writing.merge(id, 1, Integer::sum);
+    }
+
+    private void finishWriting(Collection<String> ids) {
+        List<Entry> ready = new ArrayList<>();
+        synchronized (entries) {
+            for (String id : ids) {
+                if (writing.merge(id, -1, (count, change) -> count + change > 0 ? count + change : null) == null) {
+                    Entry entry = waiting.remove(id);
+                    if (entry != null) {
+                        ready.add(entry);
+                    }
+                }
+            }
+        }
+        long now = Instant.now().getEpochSecond();
+        for (Entry entry : ready) {
+            complete(entry, now);
+        }
+    }
+
+    private void write(List<CollectionItemUpdate> updates) {
+        List<String> ids = new ArrayList<>(updates.size());
+        for (CollectionItemUpdate update : updates) {
+            ids.add(update.id());
+        }
+        try {
+            store.upsertAll(updates);
+        } finally {
+            finishWriting(ids);
+        }
+    }
+
+    // Items of collections with a lifetime expire at its end, however often they're updated.
+    private static long deadline(Entry entry, long timeoutDeadline) {
+        long lifetime = entry.configuration.lifetimeSeconds();
+        if (lifetime <= 0) {
+            return timeoutDeadline;
+        }
+        return Math.min(timeoutDeadline, TimeUnit.SECONDS.toMillis(entry.collectionStart + lifetime));
+    }
+
+    // Called with the entries lock held
+    private void schedule(Entry entry, long deadline) {
+        wheel.cancel(entry.timeout);
+        entry.timeout = wheel.schedule(entry, deadline);
+    }
+
+    private void complete(Entry entry, long now) {
+        /*
+        Other nodes might have written fields for this item as well, claiming it returns
+        them and removes the item, so no other node emits it a second time.
+         */
+        CollectionItem stored = store.claim(entry.id, node, now);
+        if (stored == null && entry.written) {
+            // Emitted, or leased for expiry, elsewhere with the flushed fields. The rest opens a new item.
+            List<CollectionItemUpdate> unwritten = new ArrayList<>();
+            synchronized (entries) {
+                takeUnwritten(entry, unwritten);
+            }
+            if (!unwritten.isEmpty()) {
+                write(unwritten);
+            }
+            return;
+        }
+        Map<String, Object> fields = new HashMap<>(entry.fields);
+        long collectionStart = entry.collectionStart;
+        if (stored != null) {
+            // The stored fields contain everything flushed so far, the unflushed part is merged on top.
+            fields.putAll(stored.collected_fields());
+            collectionStart = Math.min(collectionStart, stored.collection_start());
+            mergeUnwritten(entry, fields);
+        }
+
+        emitter.accept(CollectionItem.create(entry.id,
+                entry.configuration.name(),
+                entry.lastSeen + entry.configuration.timeoutSeconds(),
+                fields,
+                collectionStart,
+                now,
+                true));
+    }
+
+    void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.error("Unable to flush write-behind buffer: {}", e.getMessage(), e);
+        }
+    }
+
+    void flush() {
+        long now = Instant.now().getEpochSecond();
+        List<CollectionItemUpdate> retries = new ArrayList<>();
+        Map<String, CollectionItemUpdate> dirty = new HashMap<>();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                for (CollectionItemUpdate retry : entry.retries) {
+                    retries.add(retry);
+                    startWriting(entry.id);
+                }
+                entry.retries.clear();
+                if (entry.pending != null) {
+                    dirty.put(entry.id, entry.pending);
+                    entry.pending = null;
+                    startWriting(entry.id);
+                }
+            }
+        }
+
+        // Failed updates go first, so later values of the same fields are written after them.
+        try {
+            writeOrRestore(retries);
+        } catch (RuntimeException e) {
+            restore(dirty.values());
+            finishWriting(dirty.keySet());
+            throw e;
+        }
+
+        List<Entry> completed = new ArrayList<>();
+        if (!dirty.isEmpty()) {
+            Set<String> created = new HashSet<>();
+            for (CollectionItemUpdate update : writeOrRestore(dirty.values())) {
+                created.add(update.id());
+            }
+
+            List<CollectionItem> stored = store.findByIds(dirty.keySet());
+            synchronized (entries) {
+                for (CollectionItem item : stored) {
+                    Entry entry = entries.get(item.id());
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.written && created.contains(entry.id)) {
+                        // The fields known so far were emitted already, the flush opened a new item.
+                        entry.fields.clear();
+                        entry.collectionStart = item.collection_start();
+                    }
+                    entry.written = true;
+                    entry.fields.putAll(item.collected_fields());
+                    mergeUnwritten(entry, entry.fields);
+                    entry.collectionStart = Math.min(entry.collectionStart, item.collection_start());
+                    if (entry.configuration.isComplete(entry.fields)) {
+                        entries.remove(entry.id);
+                        wheel.cancel(entry.timeout);
+                        completeOrWait(entry, completed);
+                    }
+                }
+            }
+        }
+
+        for (Entry entry : completed) {
+            complete(entry, now);
+        }
+    }
+
+    /*
+    Drops the items matching the predicate from memory, their unflushed fields are written to the database.
+    Used when this node lost the ownership of ids to another node.
+     */
+    public void release(Predicate<String> lost) {
+        List<CollectionItemUpdate> released = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (lost.test(entry.id)) {
+                    iterator.remove();
+                    wheel.cancel(entry.timeout);
+                    takeUnwritten(entry, released);
+                }
+            }
+        }
+        if (!released.isEmpty()) {
+            LOG.debug("Releasing {} items to the database", released.size());
+            write(released);
+        }
+    }
+
+    void expireSafely() {
+        try {
+            expire();
+        } catch (Exception e) {
+            LOG.error("Unable to expire write-behind items: {}", e.getMessage(), e);
+        }
+    }
+
+    /*
+    Due entries are written and read back with one batch each, only the items that really timed out are claimed
+    one by one. If the write fails the entries are put back and tried again one flush interval later.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        List<Entry> expired = new ArrayList<>();
+        List<CollectionItemUpdate> unwritten = new ArrayList<>();
+        synchronized (entries) {
+            wheel.advance(now, entry -> {
+                entry.timeout = null;
+                entries.remove(entry.id);
+                expired.add(entry);
+                takeUnwritten(entry, unwritten);
+            });
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        List<String> ids = new ArrayList<>(unwritten.size());
+        for (CollectionItemUpdate update : unwritten) {
+            ids.add(update.id());
+        }
+        try {
+            store.upsertAll(unwritten);
+        } catch (RuntimeException e) {
+            synchronized (entries) {
+                for (Entry entry : expired) {
+                    if (!entries.containsKey(entry.id)) {
+                        entries.put(entry.id, entry);
+                        schedule(entry, now + flushInterval);
+                    }
+                }
+            }
+            restore(e instanceof IncompleteWriteException ? ((IncompleteWriteException) e).failed() : unwritten);
+            throw e;
+        } finally {
+            finishWriting(ids);
+        }
+
+        Map<String, CollectionItem> stored = new HashMap<>();
+        List<String> expiredIds = new ArrayList<>(expired.size());
+        for (Entry entry : expired) {
+            expiredIds.add(entry.id);
+        }
+        for (CollectionItem item : store.findByIds(expiredIds)) {
+            stored.put(item.id(), item);
+        }
+        for (Entry entry : expired) {
+            expire(entry, stored.get(entry.id), now);
+        }
+    }
+
+    private void expire(Entry entry, @Nullable CollectionItem current, long nowMillis) {
+        /*
+        All fields of the entry were written above. A missing item was emitted by the TimeoutCheck or by another
+        node with these fields in it, emitting the entry again would be a duplicate.
+         */
+        if (current == null || reschedule(entry, current, nowMillis)) {
+            return;
+        }
+        CollectionItem stored = store.claim(entry.id, node, TimeUnit.MILLISECONDS.toSeconds(nowMillis));
+        if (stored == null) {
+            return;
+        }
+        Map<String, Object> fields = new HashMap<>(entry.fields);
+        fields.putAll(stored.collected_fields());
+        long collectionStart = Math.min(entry.collectionStart, stored.collection_start());
+
+        boolean complete = entry.configuration.isComplete(fields);
+        if (!complete && entry.configuration.drop_incomplete()) {
+            metrics.dropped(entry.configuration.name());
+            return;
+        }
+        expiredEmitter.accept(CollectionItem.create(entry.id,
+                entry.configuration.name(),
+                entry.lastSeen + entry.configuration.timeoutSeconds(),
+                fields,
+                collectionStart,
+                TimeUnit.MILLISECONDS.toSeconds(nowMillis),
+                complete));
+    }
+
+    /*
+    Another node updated the stored item after this node saw it last, the item is put back with the later deadline.
+    If the buffer holds a newer entry for the item meanwhile, that entry keeps tracking it.
+     */
+    private boolean reschedule(Entry entry, CollectionItem stored, long nowMillis) {
+        entry.collectionStart = Math.min(entry.collectionStart, stored.collection_start());
+        long deadline = deadline(entry, TimeUnit.SECONDS.toMillis(stored.collection_end()) + entry.configuration.timeoutMillis());
+        if (deadline <= nowMillis + TICK_MILLIS) {
+            return false;
+        }
+        synchronized (entries) {
+            if (!entries.containsKey(entry.id)) {
+                entry.fields.putAll(stored.collected_fields());
+                entry.lastSeen = Math.max(entry.lastSeen, stored.collection_end());
+                entries.put(entry.id, entry);
+                schedule(entry, deadline);
+            }
+        }
+        return true;
+    }
+
+    /*
+    Writes the updates and puts back the ones that failed. On a partial bulk write only the failed updates are
+    sent again, counts and sums of the others are already applied. An update sent again keeps its write token,
+    so the store ignores it if the first attempt was applied after all, e.g. before a timeout.
+     */
+    private List<CollectionItemUpdate> writeOrRestore(Collection<CollectionItemUpdate> updates) {
+        if (updates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<>(updates.size());
+        for (CollectionItemUpdate update : updates) {
+            ids.add(update.id());
+        }
+        try {
+            return store.upsertAll(updates);
+        } catch (IncompleteWriteException e) {
+            restore(e.failed());
+            throw e;
+        } catch (RuntimeException e) {
+            restore(updates);
+            throw e;
+        } finally {
+            finishWriting(ids);
+        }
+    }
+
+    /*
+    Failed updates are not merged into pending, that would change an update the database might have applied.
+    Items completed meanwhile still wait for the write and keep the fields for their emission.
+     */
+    private void restore(Collection<CollectionItemUpdate> failed) {
+        synchronized (entries) {
+            for (CollectionItemUpdate update : failed) {
+                Entry entry = entries.get(update.id());
+                if (entry == null) {
+                    entry = waiting.get(update.id());
+                }
+                if (entry == null) {
+                    LOG.warn("Dropping unflushed fields of CollectionItem " + update.id());
+                    continue;
+                }
+                entry.retries.add(update);
+            }
+        }
+    }
+
+    boolean hasSettings(int maxItems, long flushInterval) {
+        return this.maxItems == Math.max(1, maxItems) && this.flushInterval == Math.max(1, flushInterval);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public boolean contains(String id) {
+        synchronized (entries) {
+            return entries.containsKey(id);
+        }
+    }
+
+    public void stop() {
+        expirer.shutdown();
+        flusher.shutdown();
+        try {
+            if (!expirer.awaitTermination(flushInterval * 2, TimeUnit.MILLISECONDS)
+                    || !flusher.awaitTermination(flushInterval * 2, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Write-behind flush did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while stopping write-behind buffer: ", e.getMessage(), e);
+        }
+        flushSafely();
+    }
+}
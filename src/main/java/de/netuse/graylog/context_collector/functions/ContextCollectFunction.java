@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+package de.netuse.graylog.context_collector.functions;
+
+import de.netuse.graylog.context_collector.context.CollectionConfigurationRegistry;
+import de.netuse.graylog.context_collector.context.CompiledConfiguration;
+import de.netuse.graylog.context_collector.context.ContextCollectorOutput;
+import de.netuse.graylog.context_collector.context.PipelineHandoff;
+import org.graylog.plugins.pipelineprocessor.EvaluationContext;
+import org.graylog.plugins.pipelineprocessor.ast.functions.AbstractFunction;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionArgs;
+import org.graylog.plugins.pipelineprocessor.ast.functions.FunctionDescriptor;
+import org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor;
+import org.graylog2.plugin.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.inject.Inject;
+
+import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.string;
+import static org.graylog.plugins.pipelineprocessor.ast.functions.ParameterDescriptor.type;
+
+/*
+@desc Pipeline function context_collect(config_name, [message]) feeding one collection configuration from a pipeline rule.
+The key and value fields are read on the pipeline thread, the update itself runs later on the PipelineHandoff worker.
+Returns true if the message was handed off, false if the configuration is unknown or disabled, the message misses a
+key field or the handoff is full.
+ */
+public class ContextCollectFunction extends AbstractFunction<Boolean> {
+    private static final Logger LOG = LoggerFactory.getLogger(ContextCollectFunction.class);
+    public static final String NAME = "context_collect";
+    private static final String CONFIG_NAME = "config_name";
+    private static final String MESSAGE = "message";
+
+    private final ParameterDescriptor<String, String> configNameParam = string(CONFIG_NAME)
+            .description("The name of the context collection")
+            .build();
+    private final ParameterDescriptor<Message, Message> messageParam = type(MESSAGE, Message.class)
+            .optional()
+            .description("The message to collect, defaults to '$message'")
+            .build();
+    private final CollectionConfigurationRegistry registry;
+    private final PipelineHandoff handoff;
+
+    @Inject
+    public ContextCollectFunction(CollectionConfigurationRegistry registry, PipelineHandoff handoff) {
+        this.registry = registry;
+        this.handoff = handoff;
+    }
+
+    @Override
+    public Boolean evaluate(FunctionArgs args, EvaluationContext context) {
+        String name = configNameParam.required(args, context);
+        Message message = messageParam.optional(args, context).orElse(context.currentMessage());
+        if (name == null || ContextCollectorOutput.isCollectedMessage(message)) {
+            return false;
+        }
+        CompiledConfiguration compiled = registry.snapshot().index().compiled(name);
+        if (compiled == null) {
+            LOG.debug("No enabled context collection named {}", name);
+            return false;
+        }
+        CompiledConfiguration.Extraction extraction = compiled.extract(message);
+        return extraction != null && handoff.offer(extraction);
+    }
+
+    @Override
+    public FunctionDescriptor<Boolean> descriptor() {
+        return FunctionDescriptor.<Boolean>builder()
+                .name(NAME)
+                .returnType(Boolean.class)
+                .params(configNameParam, messageParam)
+                .description("Hands the message to the context collector for the given collection")
+                .build();
+    }
+}
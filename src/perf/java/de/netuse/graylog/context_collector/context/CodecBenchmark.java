@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+@desc Handoff of a finished CollectionItem to the Input: the RawMessage the ContextCollectorTransport produces
+and the message the ContextCollectorCodec decodes from it.
+The json payload is the fallback for items with values the binary encoding does not cover.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"1", "3"})
+    public int keyFields;
+
+    @Param({"2", "8", "32"})
+    public int valueFields;
+
+    @Param({"binary", "json"})
+    public String payload;
+
+    private ContextCollectorTransport transport;
+    private ContextCollectorCodec codec;
+    private CollectionItem item;
+    private RawMessage rawMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configuration configuration = new Configuration(Collections.emptyMap());
+        CollectorFixture.LocalCommunicationService communicationService = new CollectorFixture.LocalCommunicationService(
+                CollectorFixture.settings(Collections.emptyList(), UpdateMode.READ_MODIFY_WRITE, IdScheme.COMPACT));
+        transport = new ContextCollectorTransport(configuration, CollectorFixture.OBJECT_MAPPER, communicationService);
+        codec = new ContextCollectorCodec(configuration, CollectorFixture.OBJECT_MAPPER, CollectorFixture.MESSAGE_FACTORY);
+
+        Map<String, Object> fields = new HashMap<>();
+        for (int k = 0; k < keyFields; k++) {
+            fields.put("key_" + k, "key-value-" + k);
+        }
+        for (int v = 0; v < valueFields; v++) {
+            fields.put("value_" + v, v % 2 == 0 ? "value-" + v : (Object) (long) v);
+        }
+        long now = System.currentTimeMillis() / 1000;
+        item = CollectionItem.create("f3a9c2d4e5b60718293a4b5c6d7e8f90", "collection_0", now + 60, fields, now - 5, now, true);
+        rawMessage = produceRawMessage();
+    }
+
+    @Benchmark
+    public RawMessage produceRawMessage() throws Exception {
+        byte[] encoded = payload.equals("json") ? CollectorFixture.OBJECT_MAPPER.writeValueAsBytes(item) : transport.encode(item);
+        RawMessage raw = new RawMessage(encoded);
+        raw.setCodecName(codec.getName());
+        return raw;
+    }
+
+    @Benchmark
+    public Message decode() {
+        return codec.decode(rawMessage);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.eventbus.EventBus;
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.graylog2.cluster.leader.LeaderElectionService;
+import org.graylog2.plugin.DefaultMessageFactory;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageFactory;
+import org.graylog2.plugin.cluster.ClusterConfigService;
+import org.graylog2.plugin.system.NodeId;
+import org.graylog2.shared.bindings.providers.ObjectMapperProvider;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/*
+@desc Builds the parts of the collector the benchmarks and simulations run against, without Graylog or MongoDB:
+generated CollectionConfigurations and matching messages, a registry serving fixed settings and a processor on any store.
+Configuration i uses the key fields c<i>_key_<k> and the value fields c<i>_value_<v>.
+ */
+public final class CollectorFixture {
+    public static final MessageFactory MESSAGE_FACTORY = new DefaultMessageFactory();
+    public static final ObjectMapper OBJECT_MAPPER = new ObjectMapperProvider().get();
+
+    private CollectorFixture() {
+    }
+
+    public static List<CollectionConfiguration> configurations(int count, int keyFields, int valueFields, int timeout) {
+        List<CollectionConfiguration> configurations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<String> keys = new ArrayList<>(keyFields);
+            for (int k = 0; k < keyFields; k++) {
+                keys.add("c" + i + "_key_" + k);
+            }
+            List<String> values = new ArrayList<>(valueFields);
+            for (int v = 0; v < valueFields; v++) {
+                values.add("c" + i + "_value_" + v);
+            }
+            configurations.add(CollectionConfiguration.create("simple", "collection_" + i, timeout,
+                    keys, values, false, true, null, null, null, null, null, null, null, null));
+        }
+        return configurations;
+    }
+
+    /*
+    A message carrying all key fields of the configuration, set to the key, and the value field with the given index.
+     */
+    public static Message message(CollectionConfiguration configuration, Object key, int valueField) {
+        Message message = MESSAGE_FACTORY.createMessage("context collector benchmark", "perf", DateTime.now());
+        for (String field : configuration.key_fields()) {
+            message.addField(field, key);
+        }
+        if (valueField < configuration.value_fields().size()) {
+            message.addField(configuration.value_fields().get(valueField), "value-" + key + "-" + valueField);
+        }
+        return message;
+    }
+
+    public static PluginConfigurationV2 settings(List<CollectionConfiguration> configurations, UpdateMode updateMode, IdScheme idScheme) {
+        return PluginConfigurationV2.createDefault().toBuilder()
+                .collectionConfigurations(configurations)
+                .updateMode(updateMode)
+                .idScheme(idScheme)
+                .build();
+    }
+
+    public static CollectionConfigurationRegistry registry(PluginConfigurationV2 settings) {
+        ClusterConfigService clusterConfigService = mock(ClusterConfigService.class);
+        when(clusterConfigService.getOrDefault(eq(PluginConfigurationV2.class), any(PluginConfigurationV2.class))).thenReturn(settings);
+        return new CollectionConfigurationRegistry(clusterConfigService, new EventBus());
+    }
+
+    public static ContextCollectorProcessor processor(CollectionItemStore store, ContextCollectorCommunicationService communicationService,
+                                                      CollectionConfigurationRegistry registry, String nodeId) {
+        return processor(store, communicationService, registry, nodeId, new ContextCollectorMetrics(new MetricRegistry()));
+    }
+
+    public static ContextCollectorProcessor processor(CollectionItemStore store, ContextCollectorCommunicationService communicationService,
+                                                      CollectionConfigurationRegistry registry, String nodeId,
+                                                      ContextCollectorMetrics metrics) {
+        return new ContextCollectorProcessor(store, communicationService, registry, new KeyOwnership(nodeId), metrics);
+    }
+
+    /*
+    Timeout check of a node that is not the leader, it never migrates legacy ids.
+     */
+    public static ContextCollectorTimeoutCheck timeoutCheck(CollectionItemStore store, ContextCollectorCommunicationService communicationService,
+                                                            CollectionConfigurationRegistry registry, String nodeId,
+                                                            ContextCollectorMetrics metrics) {
+        NodeId node = mock(NodeId.class);
+        when(node.getNodeId()).thenReturn(nodeId);
+        return new ContextCollectorTimeoutCheck(store, communicationService, registry, node,
+                mock(LeaderElectionService.class), metrics);
+    }
+
+    /*
+    Drains the queue on a daemon thread in batches like the ContextCollectorTransport, until the thread is interrupted.
+     */
+    public static Thread startConsumer(CollectionItemQueue queue, Consumer<CollectionItem> consumer) {
+        Thread thread = new Thread(() -> {
+            List<CollectionItem> batch = new ArrayList<>(512);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    queue.drainTo(batch, 512, 100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (CollectionItem item : batch) {
+                    consumer.accept(item);
+                }
+                queue.acknowledge();
+                batch.clear();
+            }
+        }, "context-collector-perf-consumer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /*
+    @desc Queue and locks of one simulated node.
+     */
+    public static final class LocalCommunicationService implements ContextCollectorCommunicationService {
+        private final CollectionItemQueue queue;
+        private final CollectionItemLocks locks;
+
+        public LocalCommunicationService(PluginConfigurationV2 settings) {
+            MetricRegistry metricRegistry = new MetricRegistry();
+            this.queue = new CollectionItemQueue(settings.queueCapacity(), settings.queueOverflowPolicy(),
+                    settings.queueOfferTimeout(), metricRegistry);
+            this.locks = new CollectionItemLocks(1024, metricRegistry);
+        }
+
+        @Override
+        public CollectionItemQueue getQueue() {
+            return queue;
+        }
+
+        @Override
+        public CollectionItemLocks getLocks() {
+            return locks;
+        }
+    }
+}
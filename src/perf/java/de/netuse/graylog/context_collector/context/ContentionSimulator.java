@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+@desc Simulates several Graylog nodes writing to one collection store. Every node has its own processor, locks,
+queue and timeout check, all share one InMemoryCollectionItemStore. Every item gets a home node, and with the
+probability given by --overlap each of its messages goes to another node instead, which makes the nodes race on
+the same items. All messages of every item are sent, so each item should be emitted exactly once, complete,
+right after its last message. The simulator reports how far the nodes fall short of that:
+  late        items emitted by the timeout check instead of on their last message
+  duplicates  items emitted more than once
+  lost fields value fields sent but missing in the emitted item, and items never emitted at all
+
+Run with mvn -Pperf test-compile exec:exec@contention -Dcontention.args="--option=value ...", options:
+  --nodes, --threads (processing threads per node), --items, --configurations, --key-fields, --value-fields,
+  --timeout (seconds), --overlap (0 to 1), --skew (how far messages of one item are interleaved with others),
+  --store-latency-micros (added to every store call), --update-mode, --batch (messages per processMessages call),
+  --sweep-interval (milliseconds), --seed
+ */
+public final class ContentionSimulator {
+    private final PerfOptions options;
+    private final List<CollectionConfiguration> configurations;
+    private final Map<String, AtomicInteger> emissions = new ConcurrentHashMap<>();
+    private final AtomicLong emittedIncomplete = new AtomicLong();
+    private final AtomicLong lostFields = new AtomicLong();
+
+    private ContentionSimulator(PerfOptions options) {
+        this.options = options;
+        this.configurations = CollectorFixture.configurations(options.getInt("configurations", 1),
+                options.getInt("key-fields", 1), options.getInt("value-fields", 4), options.getInt("timeout", 2));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ContentionSimulator(PerfOptions.parse(args)).run();
+        System.exit(0);
+    }
+
+    /*
+    @desc One simulated node and the messages it receives.
+     */
+    private static final class Node {
+        private final String id;
+        private final MetricRegistry metricRegistry = new MetricRegistry();
+        private final CollectorFixture.LocalCommunicationService communicationService;
+        private final ContextCollectorProcessor processor;
+        private final ContextCollectorTimeoutCheck timeoutCheck;
+        private final List<Message> messages = new ArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private Thread consumer;
+
+        private Node(String id, PluginConfigurationV2 settings, CollectionItemStore store) {
+            this.id = id;
+            ContextCollectorMetrics metrics = new ContextCollectorMetrics(metricRegistry);
+            CollectionConfigurationRegistry registry = CollectorFixture.registry(settings);
+            this.communicationService = new CollectorFixture.LocalCommunicationService(settings);
+            this.processor = CollectorFixture.processor(store, communicationService, registry, id, metrics);
+            this.timeoutCheck = CollectorFixture.timeoutCheck(store, communicationService, registry, id, metrics);
+        }
+
+        private int buffered() {
+            Gauge<?> gauge = metricRegistry.getGauges().get(MetricRegistry.name(ContextCollectorMetrics.PREFIX, "buffered-items"));
+            return gauge == null ? 0 : ((Number) gauge.getValue()).intValue();
+        }
+
+        private long counted(String suffix) {
+            long sum = 0;
+            for (Counter counter : metricRegistry.getCounters((name, metric) -> name.endsWith(suffix)).values()) {
+                sum += counter.getCount();
+            }
+            return sum;
+        }
+    }
+
+    private void run() throws Exception {
+        int nodeCount = options.getInt("nodes", 3);
+        int items = options.getInt("items", 20_000);
+        PluginConfigurationV2 settings = CollectorFixture.settings(configurations,
+                UpdateMode.valueOf(options.get("update-mode", "READ_MODIFY_WRITE")), IdScheme.COMPACT);
+        InMemoryCollectionItemStore store = new InMemoryCollectionItemStore(
+                TimeUnit.MICROSECONDS.toNanos(options.getLong("store-latency-micros", 200)));
+
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        for (int n = 0; n < nodeCount; n++) {
+            Node node = new Node("node-" + n, settings, store);
+            node.consumer = CollectorFixture.startConsumer(node.communicationService.getQueue(), this::record);
+            nodes.add(node);
+        }
+        int messages = distribute(nodes, items);
+
+        long sweepInterval = options.getLong("sweep-interval", 1000);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(nodeCount);
+        for (Node node : nodes) {
+            scheduler.scheduleWithFixedDelay(() -> sweep(node), sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+
+        long processMillis = process(nodes);
+        for (Node node : nodes) {
+            node.processor.flush();
+        }
+        long drainStarted = System.nanoTime();
+        long maxTimeout = configurations.stream().mapToLong(CollectionConfiguration::timeoutMillis).max().orElse(0);
+        long deadline = drainStarted + TimeUnit.MILLISECONDS.toNanos(maxTimeout + 2 * sweepInterval + 5000);
+        while (System.nanoTime() < deadline && !drained(store, nodes)) {
+            Thread.sleep(50);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStarted);
+        scheduler.shutdownNow();
+        for (Node node : nodes) {
+            node.consumer.interrupt();
+        }
+
+        report(nodes, store, items, messages, processMillis, drainMillis);
+    }
+
+    /*
+    Builds the messages of every item in arrival order and hands each to the home node of its item
+    or, with the overlap probability, to a random other node.
+     */
+    private int distribute(List<Node> nodes, int items) {
+        Random random = new Random(options.getLong("seed", 42));
+        double overlap = options.getDouble("overlap", 0.5);
+        int skew = options.getInt("skew", 16);
+        List<long[]> slots = new ArrayList<>();
+        List<Message> generated = new ArrayList<>();
+        long position = 0;
+        for (int item = 0; item < items; item++) {
+            CollectionConfiguration configuration = configurations.get(item % configurations.size());
+            for (int v = 0; v < configuration.value_fields().size(); v++) {
+                slots.add(new long[]{position + (skew > 0 ? random.nextInt(skew + 1) : 0), generated.size(), item});
+                generated.add(CollectorFixture.message(configuration, "key-" + item, v));
+            }
+            position += configuration.value_fields().size();
+        }
+        slots.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        for (long[] slot : slots) {
+            int home = (int) (slot[2] % nodes.size());
+            int target = nodes.size() > 1 && random.nextDouble() < overlap
+                    ? (home + 1 + random.nextInt(nodes.size() - 1)) % nodes.size()
+                    : home;
+            nodes.get(target).messages.add(generated.get((int) slot[1]));
+        }
+        return generated.size();
+    }
+
+    private long process(List<Node> nodes) throws InterruptedException {
+        int threads = options.getInt("threads", 2);
+        int batch = options.getInt("batch", 1);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(nodes.size() * threads);
+        for (Node node : nodes) {
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(() -> {
+                    try {
+                        start.await();
+                        int offset;
+                        while ((offset = node.next.getAndAdd(batch)) < node.messages.size()) {
+                            node.processor.processMessages(node.messages.subList(offset, Math.min(node.messages.size(), offset + batch)));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }, node.id + "-processor-" + t);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private static void sweep(Node node) {
+        try {
+            node.timeoutCheck.doRun();
+        } catch (Exception e) {
+            System.err.println("Timeout check of " + node.id + " failed: " + e);
+        }
+    }
+
+    private static boolean drained(InMemoryCollectionItemStore store, List<Node> nodes) {
+        if (store.count() > 0) {
+            return false;
+        }
+        for (Node node : nodes) {
+            if (node.buffered() > 0 || node.communicationService.getQueue().size() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Items are told apart by their key, which is unique per item.
+     */
+    private void record(CollectionItem item) {
+        CollectionConfiguration configuration = configurations.get(Integer.parseInt(item.name().substring("collection_".length())));
+        Object key = item.collected_fields().get(configuration.key_fields().get(0));
+        emissions.computeIfAbsent(item.name() + "/" + key, k -> new AtomicInteger()).incrementAndGet();
+        if (!item.complete()) {
+            emittedIncomplete.incrementAndGet();
+        }
+        for (String field : configuration.value_fields()) {
+            if (!item.collected_fields().containsKey(field)) {
+                lostFields.incrementAndGet();
+            }
+        }
+    }
+
+    private void report(List<Node> nodes, InMemoryCollectionItemStore store, int items, int messages,
+                        long processMillis, long drainMillis) {
+        long duplicates = 0;
+        for (AtomicInteger count : emissions.values()) {
+            duplicates += Math.max(0, count.get() - 1);
+        }
+        long neverEmitted = items - emissions.size();
+        long completed = 0;
+        long timedOut = 0;
+        for (Node node : nodes) {
+            completed += node.counted(".completed");
+            timedOut += node.counted(".timed-out");
+        }
+        int valueFields = configurations.get(0).value_fields().size();
+
+        System.out.println();
+        System.out.println("Context collector contention simulation");
+        System.out.printf("  options               %s%n", options);
+        System.out.printf("  messages              %d in %d ms, %d messages/s over %d nodes%n",
+                messages, processMillis, messages * 1000L / processMillis, nodes.size());
+        System.out.printf("  drained               after %d ms, %d items left open%n", drainMillis, store.count());
+        System.out.printf("  store operations      %d (%.2f per message)%n", store.operations(), store.operations() / (double) messages);
+        System.out.printf("  items                 %d sent, %d emitted on completion, %d by the timeout check%n", items, completed, timedOut);
+        System.out.printf("  late                  %d (%.2f%%)%n", timedOut, 100.0 * timedOut / items);
+        System.out.printf("  duplicates            %d (%.2f%%)%n", duplicates, 100.0 * duplicates / items);
+        System.out.printf("  lost fields           %d of %d, %d items emitted incomplete, %d never emitted%n",
+                lostFields.get(), (long) items * valueFields, emittedIncomplete.get(), neverEmitted);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/*
+@desc In-memory stand-in for the MongoCollectionItemStore, used by the benchmarks and simulations.
+Every operation on one id is atomic like a single document update, and reads return copies,
+so concurrent read-modify-write cycles lose fields the same way they do against the database.
+A round trip latency can be added to every call, which widens the windows between reading and writing an item.
+ */
+public class InMemoryCollectionItemStore implements CollectionItemStore {
+    private final ConcurrentHashMap<String, Stored> items = new ConcurrentHashMap<>();
+    // Snapshot times by id, like snapshot_at they're dropped with the item.
+    private final ConcurrentHashMap<String, Long> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong operations = new AtomicLong();
+    private final long latencyNanos;
+
+    public InMemoryCollectionItemStore() {
+        this(0);
+    }
+
+    public InMemoryCollectionItemStore(long latencyNanos) {
+        this.latencyNanos = latencyNanos;
+    }
+
+    private static final class Stored {
+        private final CollectionItem item;
+        private final String claimedBy;
+        private final long claimUntil;
+
+        private Stored(CollectionItem item, @Nullable String claimedBy, long claimUntil) {
+            this.item = item;
+            this.claimedBy = claimedBy;
+            this.claimUntil = claimUntil;
+        }
+
+        private boolean claimable(long now) {
+            return item.invalid_after() < now && leasable(now);
+        }
+
+        private boolean leasable(long now) {
+            return claimedBy == null || claimUntil < now;
+        }
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem find(String id) {
+        roundTrip();
+        Stored stored = items.get(id);
+        return stored == null ? null : copy(stored.item);
+    }
+
+    @Override
+    public void create(CollectionItem item) {
+        roundTrip();
+        items.put(item.id(), new Stored(copy(item), null, 0));
+    }
+
+    @Override
+    public void update(CollectionItem item) {
+        roundTrip();
+        items.computeIfPresent(item.id(), (id, stored) -> {
+            Map<String, Object> fields = new HashMap<>(stored.item.collected_fields());
+            fields.putAll(item.collected_fields());
+            return new Stored(stored.item.toBuilder()
+                    .invalid_after(item.invalid_after())
+                    .complete(item.complete())
+                    .collected_fields(fields)
+                    .build(), stored.claimedBy, stored.claimUntil);
+        });
+    }
+
+    @Override
+    public void writeBack(CollectionItem item, @Nullable CollectionConfiguration configuration) {
+        roundTrip();
+        items.compute(item.id(), (id, stored) -> {
+            if (stored == null) {
+                return new Stored(copy(item), null, 0);
+            }
+            Map<String, Object> fields = new HashMap<>(stored.item.collected_fields());
+            for (Map.Entry<String, Object> field : item.collected_fields().entrySet()) {
+                Aggregation aggregation = configuration == null ? Aggregation.LAST : configuration.aggregation(field.getKey());
+                if (aggregation == Aggregation.FIRST || aggregation == Aggregation.LAST) {
+                    fields.put(field.getKey(), field.getValue());
+                } else {
+                    fields.merge(field.getKey(), field.getValue(), aggregation::combine);
+                }
+            }
+            return new Stored(stored.item.toBuilder()
+                    .collection_start(Math.min(stored.item.collection_start(), item.collection_start()))
+                    .invalid_after(item.invalid_after())
+                    .collection_end(item.collection_end())
+                    .complete(item.complete())
+                    .collected_fields(fields)
+                    .build(), null, 0);
+        });
+    }
+
+    @Override
+    public List<CollectionItemUpdate> upsertAll(Collection<CollectionItemUpdate> updates) {
+        roundTrip();
+        List<CollectionItemUpdate> created = new ArrayList<>();
+        for (CollectionItemUpdate update : updates) {
+            if (upsert(update)) {
+                created.add(update);
+            }
+        }
+        return created;
+    }
+
+    @Override
+    public UpsertedItem upsertAndGet(CollectionItemUpdate update) {
+        roundTrip();
+        boolean created = upsert(update);
+        return UpsertedItem.create(copy(items.get(update.id()).item), created);
+    }
+
+    /*
+    Same semantics as MongoCollectionItemStore.toUpdate, returns true if the item was created.
+     */
+    private boolean upsert(CollectionItemUpdate update) {
+        boolean[] created = new boolean[1];
+        items.compute(update.id(), (id, stored) -> {
+            CollectionItem item = stored != null ? stored.item : CollectionItem.create(id,
+                    update.configuration().name(), 0, new HashMap<>(), update.collectionStart(), 0, false);
+            created[0] = stored == null;
+            Map<String, Object> fields = new HashMap<>(item.collected_fields());
+            update.configuration().mergeFields(fields, update.fields());
+            return new Stored(item.toBuilder()
+                    .invalid_after(update.invalidAfter())
+                    .collection_end(update.lastSeen())
+                    .collected_fields(fields)
+                    .build(), stored == null ? null : stored.claimedBy, stored == null ? 0 : stored.claimUntil);
+        });
+        return created[0];
+    }
+
+    @Override
+    public List<CollectionItem> findByIds(Collection<String> ids) {
+        roundTrip();
+        List<CollectionItem> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Stored stored = items.get(id);
+            if (stored != null) {
+                found.add(copy(stored.item));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<CollectionItem> claimExpired(long now, String node, int limit, long leaseSeconds) {
+        return claim(stored -> stored.claimable(now), CollectionItem::invalid_after, now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public List<CollectionItem> claimOldest(String name, boolean byLastUpdate, long now, String node, int limit, long leaseSeconds) {
+        return claim(stored -> stored.item.name().equals(name) && stored.leasable(now),
+                byLastUpdate ? CollectionItem::collection_end : CollectionItem::collection_start, now, node, limit, leaseSeconds);
+    }
+
+    private List<CollectionItem> claim(Predicate<Stored> claimable, ToLongFunction<CollectionItem> order,
+                                       long now, String node, int limit, long leaseSeconds) {
+        roundTrip();
+        List<String> candidates = items.entrySet().stream()
+                .filter(entry -> claimable.test(entry.getValue()))
+                .sorted(Comparator.comparingLong(entry -> order.applyAsLong(entry.getValue().item)))
+                .limit(limit)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        List<CollectionItem> claimed = new ArrayList<>(candidates.size());
+        long claimUntil = now + leaseSeconds;
+        for (String candidate : candidates) {
+            Stored leased = items.computeIfPresent(candidate, (id, stored) ->
+                    claimable.test(stored) ? new Stored(stored.item, node, claimUntil) : stored);
+            if (leased != null && node.equals(leased.claimedBy) && leased.claimUntil == claimUntil) {
+                claimed.add(copy(leased.item));
+            }
+        }
+        return claimed;
+    }
+
+    @Override
+    public List<CollectionItem> claimStartedBefore(String name, long started, long now, String node, int limit, long leaseSeconds) {
+        return claim(stored -> stored.item.name().equals(name) && stored.item.collection_start() < started && stored.leasable(now),
+                CollectionItem::collection_start, now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public List<CollectionItem> claimSnapshotDue(String name, long before, long now, String node, int limit, long leaseSeconds) {
+        return claim(stored -> stored.item.name().equals(name) && stored.leasable(now)
+                        && snapshots.getOrDefault(stored.item.id(), stored.item.collection_start()) < before,
+                CollectionItem::collection_start, now, node, limit, leaseSeconds);
+    }
+
+    @Override
+    public void snapshotTaken(Collection<String> ids, long now) {
+        roundTrip();
+        for (String id : ids) {
+            snapshots.put(id, now);
+            items.computeIfPresent(id, (key, stored) -> new Stored(stored.item, null, 0));
+        }
+    }
+
+    @Override
+    public void expireBy(Collection<String> ids, long invalidAfter) {
+        roundTrip();
+        for (String id : ids) {
+            items.computeIfPresent(id, (key, stored) -> stored.item.invalid_after() <= invalidAfter ? stored
+                    : new Stored(stored.item.toBuilder().invalid_after(invalidAfter).build(), stored.claimedBy, stored.claimUntil));
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        roundTrip();
+        items.remove(id);
+        snapshots.remove(id);
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem removeClaimed(String id, String node, long claimUntil) {
+        roundTrip();
+        Stored stored = items.get(id);
+        if (stored == null || !node.equals(stored.claimedBy) || stored.claimUntil != claimUntil || !items.remove(id, stored)) {
+            return null;
+        }
+        snapshots.remove(id);
+        return copy(stored.item);
+    }
+
+    @Nullable
+    @Override
+    public CollectionItem claim(String id, String node, long now) {
+        roundTrip();
+        Stored stored = items.get(id);
+        if (stored == null || !(stored.leasable(now) || node.equals(stored.claimedBy)) || !items.remove(id, stored)) {
+            return null;
+        }
+        snapshots.remove(id);
+        return copy(stored.item);
+    }
+
+    /*
+    The stand-in only ever holds ids of the configured scheme.
+     */
+    @Override
+    public int migrateLegacyIds(Map<String, CollectionConfiguration> configurations, int limit) {
+        return 0;
+    }
+
+    @Override
+    public long count() {
+        return items.size();
+    }
+
+    @Override
+    public long count(String name) {
+        roundTrip();
+        return items.values().stream().filter(stored -> stored.item.name().equals(name)).count();
+    }
+
+    /*
+    Number of store calls so far, the equivalent of database round trips.
+     */
+    public long operations() {
+        return operations.get();
+    }
+
+    private void roundTrip() {
+        operations.incrementAndGet();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    public void clear() {
+        items.clear();
+    }
+
+    private static CollectionItem copy(CollectionItem item) {
+        return item.toBuilder().collected_fields(new HashMap<>(item.collected_fields())).build();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+@desc Per message work of the processor that does not touch the store: matching a message against the configurations,
+constructing the CollectionItem id and the completeness check.
+Every invocation takes the next of MESSAGES pre-built messages, which cycle through the configurations and keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Param({"1", "10", "100"})
+    public int configurations;
+
+    @Param({"1", "3"})
+    public int keyFields;
+
+    @Param({"2", "8"})
+    public int valueFields;
+
+    @Param({"SHA256_HEX", "COMPACT"})
+    public IdScheme idScheme;
+
+    private ConfigurationIndex index;
+    private Message[] messages;
+    private CompiledConfiguration.Extraction[] extractions;
+    private CollectionItem[] items;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<CollectionConfiguration> generated = CollectorFixture.configurations(configurations, keyFields, valueFields, 60);
+        index = ConfigurationIndex.compile(generated);
+        messages = new Message[MESSAGES];
+        extractions = new CompiledConfiguration.Extraction[MESSAGES];
+        items = new CollectionItem[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            CollectionConfiguration configuration = generated.get(i % configurations);
+            messages[i] = CollectorFixture.message(configuration, "key-" + i, i % valueFields);
+            extractions[i] = index.match(messages[i]).get(0);
+
+            // Every second item is complete, the others miss their last value field.
+            Map<String, Object> fields = new HashMap<>();
+            for (int v = 0; v < valueFields - (i % 2); v++) {
+                fields.put(configuration.value_fields().get(v), "value");
+            }
+            items[i] = CollectionItem.create("id-" + i, configuration.name(), 0, fields, 0, 0, false);
+        }
+    }
+
+    private int next() {
+        next = (next + 1) & (MESSAGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<CompiledConfiguration.Extraction> match() {
+        return index.match(messages[next()]);
+    }
+
+    @Benchmark
+    public String constructId() {
+        return CollectionIds.construct(idScheme, extractions[next()]);
+    }
+
+    @Benchmark
+    public boolean hasAllFields() {
+        int i = next();
+        return extractions[i].configuration().hasAllFields(items[i]);
+    }
+}
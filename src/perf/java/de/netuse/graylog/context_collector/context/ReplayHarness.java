@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.fasterxml.jackson.core.type.TypeReference;
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.joda.time.DateTime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/*
+@desc Offline replay of captured or synthetic traffic through the whole collector: ContextCollectorOutput.write,
+the ContextCollectorProcessor, the queue, the ContextCollectorTimeoutCheck and the ContextCollectorCodec, with the
+InMemoryCollectionItemStore in place of MongoDB. Reports throughput, the latency from the first message of an item
+to its decoded message, peak open items and peak heap use.
+
+Run with mvn -Pperf test-compile exec:exec@replay -Dreplay.args="--option=value ...", options:
+  --input=<file>          NDJSON file, one Graylog message per line, either its fields or {"message": {fields}}.
+                          Without input, synthetic traffic is generated.
+  --config=<file>         CollectionConfigurations in the format of the configuration file,
+                          otherwise --configurations, --key-fields, --value-fields and --timeout (seconds) are generated.
+  --messages, --keys, --distribution=uniform|zipf, --zipf-exponent, --skew, --missing, --seed
+                          shape the synthetic traffic, see SyntheticTraffic.
+  --update-mode, --id-scheme, --queue-capacity
+                          plugin settings, as in the configuration UI.
+  --batch                 messages per ContextCollectorOutput.write call.
+  --rate                  messages per second, 0 replays as fast as possible.
+  --sweep-interval        milliseconds between two runs of the timeout check.
+ */
+public final class ReplayHarness {
+    private static final String NODE_ID = "replay-node";
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+            "_id", "message", "source", "timestamp", "streams", "gl2_message_id"));
+
+    private final PerfOptions options;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final Map<String, Long> firstSeen = new ConcurrentHashMap<>();
+    private final Histogram completeLatency = new Histogram(new UniformReservoir(100_000));
+    private final Histogram incompleteLatency = new Histogram(new UniformReservoir(100_000));
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong peakOpenItems = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    private ReplayHarness(PerfOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ReplayHarness(PerfOptions.parse(args)).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        List<CollectionConfiguration> configurations = loadConfigurations();
+        List<Message> messages = loadMessages(configurations);
+        PluginConfigurationV2 settings = CollectorFixture.settings(configurations,
+                UpdateMode.valueOf(options.get("update-mode", "READ_MODIFY_WRITE")),
+                IdScheme.valueOf(options.get("id-scheme", "COMPACT"))).toBuilder()
+                .queueCapacity(options.getInt("queue-capacity", 1024))
+                .build();
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ContextCollectorMetrics metrics = new ContextCollectorMetrics(metricRegistry);
+        CollectionConfigurationRegistry registry = CollectorFixture.registry(settings);
+        InMemoryCollectionItemStore store = new InMemoryCollectionItemStore();
+        CollectorFixture.LocalCommunicationService communicationService = new CollectorFixture.LocalCommunicationService(settings);
+        CollectionItemQueue queue = communicationService.getQueue();
+        ContextCollectorProcessor processor = CollectorFixture.processor(store, communicationService, registry, NODE_ID, metrics);
+        ContextCollectorOutput output = new ContextCollectorOutput(processor);
+        ContextCollectorTimeoutCheck timeoutCheck = CollectorFixture.timeoutCheck(store, communicationService, registry, NODE_ID, metrics);
+
+        Configuration inputConfiguration = new Configuration(Collections.emptyMap());
+        ContextCollectorTransport transport = new ContextCollectorTransport(inputConfiguration, CollectorFixture.OBJECT_MAPPER, communicationService);
+        ContextCollectorCodec codec = new ContextCollectorCodec(inputConfiguration, CollectorFixture.OBJECT_MAPPER, CollectorFixture.MESSAGE_FACTORY);
+        Thread consumer = CollectorFixture.startConsumer(queue, item -> decode(item, transport, codec));
+
+        @SuppressWarnings("unchecked")
+        Gauge<Integer> buffered = (Gauge<Integer>) metricRegistry.getGauges()
+                .get(MetricRegistry.name(ContextCollectorMetrics.PREFIX, "buffered-items"));
+        long sweepInterval = options.getLong("sweep-interval", 1000);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        scheduler.scheduleWithFixedDelay(() -> sweep(timeoutCheck), sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> sample(store, buffered), 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        System.gc();
+        long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        long replayMillis = replay(messages, output, registry.snapshot().index(), settings.idScheme());
+
+        processor.flush();
+        long drainStarted = System.nanoTime();
+        long maxTimeout = configurations.stream().mapToLong(CollectionConfiguration::timeoutMillis).max().orElse(0);
+        long deadline = drainStarted + TimeUnit.MILLISECONDS.toNanos(maxTimeout + 2 * sweepInterval + 5000);
+        while (System.nanoTime() < deadline
+                && (store.count() > 0 || buffered.getValue() > 0 || queue.size() > 0)) {
+            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStarted);
+        scheduler.shutdownNow();
+        consumer.interrupt();
+
+        report(metricRegistry, store, messages.size(), replayMillis, drainMillis, baselineHeap);
+    }
+
+    private List<CollectionConfiguration> loadConfigurations() throws IOException {
+        if (options.has("config")) {
+            CollectionConfiguration[] loaded = CollectorFixture.OBJECT_MAPPER.readValue(
+                    Paths.get(options.get("config", null)).toFile(), CollectionConfiguration[].class);
+            return Arrays.stream(loaded).filter(CollectionConfiguration::enabled).collect(Collectors.toList());
+        }
+        return CollectorFixture.configurations(options.getInt("configurations", 10), options.getInt("key-fields", 1),
+                options.getInt("value-fields", 3), options.getInt("timeout", 2));
+    }
+
+    private List<Message> loadMessages(List<CollectionConfiguration> configurations) throws IOException {
+        if (!options.has("input")) {
+            return new SyntheticTraffic(configurations, options.getInt("keys", 100_000),
+                    SyntheticTraffic.Distribution.parse(options.get("distribution", "uniform")),
+                    options.getDouble("zipf-exponent", 1.1), options.getInt("skew", 0), options.getDouble("missing", 0),
+                    options.getLong("seed", 42)).generate(options.getInt("messages", 200_000));
+        }
+        List<Message> messages = new ArrayList<>();
+        Path input = Paths.get(options.get("input", null));
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    messages.add(parse(line));
+                }
+            }
+        }
+        return messages;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Message parse(String line) throws IOException {
+        Map<String, Object> fields = CollectorFixture.OBJECT_MAPPER.readValue(line, new TypeReference<Map<String, Object>>() {});
+        if (fields.get("message") instanceof Map) {
+            fields = (Map<String, Object>) fields.get("message");
+        }
+        Message message = CollectorFixture.MESSAGE_FACTORY.createMessage(String.valueOf(fields.getOrDefault("message", "")),
+                String.valueOf(fields.getOrDefault("source", "replay")), DateTime.now());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!RESERVED.contains(field.getKey())) {
+                message.addField(field.getKey(), field.getValue());
+            }
+        }
+        return message;
+    }
+
+    /*
+    The time a message is written counts as the first message of all items it matches, unless they already started.
+    Looking up the ids costs one more match per message, on the replay thread.
+     */
+    private long replay(List<Message> messages, ContextCollectorOutput output, ConfigurationIndex index, IdScheme idScheme) throws Exception {
+        int batchSize = options.getInt("batch", 100);
+        double rate = options.getDouble("rate", 0);
+        long started = System.nanoTime();
+        for (int offset = 0; offset < messages.size(); offset += batchSize) {
+            List<Message> batch = messages.subList(offset, Math.min(messages.size(), offset + batchSize));
+            long now = System.nanoTime();
+            for (Message message : batch) {
+                for (CompiledConfiguration.Extraction extraction : index.match(message)) {
+                    firstSeen.putIfAbsent(CollectionIds.construct(idScheme, extraction), now);
+                }
+            }
+            output.write(batch);
+
+            if (rate > 0) {
+                long due = started + (long) ((offset + batch.size()) / rate * TimeUnit.SECONDS.toNanos(1));
+                long ahead = due - System.nanoTime();
+                if (ahead > 0) {
+                    TimeUnit.NANOSECONDS.sleep(ahead);
+                }
+            }
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private static void sweep(ContextCollectorTimeoutCheck timeoutCheck) {
+        try {
+            timeoutCheck.doRun();
+        } catch (Exception e) {
+            System.err.println("Timeout check failed: " + e);
+        }
+    }
+
+    private void decode(CollectionItem item, ContextCollectorTransport transport, ContextCollectorCodec codec) {
+        try {
+            RawMessage rawMessage = new RawMessage(transport.encode(item));
+            rawMessage.setCodecName(codec.getName());
+            if (codec.decode(rawMessage) == null) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        decoded.incrementAndGet();
+        Long first = firstSeen.remove(item.id());
+        if (first != null) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - first);
+            (item.complete() ? completeLatency : incompleteLatency).update(micros);
+        }
+    }
+
+    private void sample(InMemoryCollectionItemStore store, Gauge<Integer> buffered) {
+        peakOpenItems.accumulateAndGet(store.count() + buffered.getValue(), Math::max);
+        peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    private void report(MetricRegistry metricRegistry, InMemoryCollectionItemStore store, int messages,
+                        long replayMillis, long drainMillis, long baselineHeap) {
+        System.out.println();
+        System.out.println("Context collector replay");
+        System.out.printf("  options               %s%n", options);
+        System.out.printf("  messages              %d in %d ms, %d messages/s%n", messages, replayMillis, messages * 1000L / replayMillis);
+        System.out.printf("  drained               after %d ms, %d items left open%n", drainMillis, store.count());
+        System.out.printf("  items                 %d completed, %d timed out, %d dropped, %d decoded%n",
+                sum(metricRegistry, ".completed"), sum(metricRegistry, ".timed-out"), sum(metricRegistry, ".dropped"), decoded.get());
+        System.out.printf("  store operations      %d (%.2f per message)%n", store.operations(), store.operations() / (double) messages);
+        System.out.printf("  peak open items       %d%n", peakOpenItems.get());
+        System.out.printf("  peak heap             %d MB (%d MB before replay)%n", peakHeap.get() >> 20, baselineHeap >> 20);
+        printLatency("latency complete", completeLatency);
+        printLatency("latency timed out", incompleteLatency);
+    }
+
+    private static long sum(MetricRegistry metricRegistry, String suffix) {
+        long sum = 0;
+        for (Counter counter : metricRegistry.getCounters((name, metric) -> name.endsWith(suffix)).values()) {
+            sum += counter.getCount();
+        }
+        return sum;
+    }
+
+    private static void printLatency(String label, Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            System.out.printf("  %-21s none%n", label);
+            return;
+        }
+        Snapshot snapshot = histogram.getSnapshot();
+        System.out.printf("  %-21s p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms (%d items)%n", label,
+                snapshot.getMedian() / 1000, snapshot.getValue(0.90) / 1000,
+                snapshot.get99thPercentile() / 1000, snapshot.get999thPercentile() / 1000, snapshot.getMax() / 1000.0,
+                histogram.getCount());
+    }
+}
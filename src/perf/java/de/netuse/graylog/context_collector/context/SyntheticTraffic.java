@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.graylog2.plugin.Message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+@desc Generates the messages of CollectionItems for a set of CollectionConfigurations.
+Every item draws a configuration and a key, and sends one message per value field. Keys follow a uniform or a zipf
+distribution over the key space, so with zipf a few hot keys make up most of the traffic.
+The arrival skew moves every message up to skew positions later, interleaving the messages of neighbouring items,
+and a share of the value fields can be left out so their items only finish on timeout.
+ */
+public final class SyntheticTraffic {
+    public enum Distribution {
+        UNIFORM,
+        ZIPF;
+
+        public static Distribution parse(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final List<CollectionConfiguration> configurations;
+    private final int keys;
+    private final Distribution distribution;
+    private final double exponent;
+    private final int skew;
+    private final double missing;
+    private final long seed;
+
+    public SyntheticTraffic(List<CollectionConfiguration> configurations, int keys, Distribution distribution,
+                            double exponent, int skew, double missing, long seed) {
+        this.configurations = configurations;
+        this.keys = keys;
+        this.distribution = distribution;
+        this.exponent = exponent;
+        this.skew = skew;
+        this.missing = missing;
+        this.seed = seed;
+    }
+
+    private static final class Slot {
+        private final long position;
+        private final long sequence;
+        private final Message message;
+
+        private Slot(long position, long sequence, Message message) {
+            this.position = position;
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    public List<Message> generate(int messages) {
+        Random random = new Random(seed);
+        double[] cdf = distribution == Distribution.ZIPF ? zipf(keys, exponent) : null;
+        List<Slot> slots = new ArrayList<>(messages);
+        long position = 0;
+        long sequence = 0;
+        while (slots.size() < messages) {
+            CollectionConfiguration configuration = configurations.get(random.nextInt(configurations.size()));
+            String key = "key-" + nextKey(random, cdf);
+            int values = Math.max(1, configuration.value_fields().size());
+            for (int v = 0; v < values && slots.size() < messages; v++) {
+                if (missing > 0 && random.nextDouble() < missing) {
+                    continue;
+                }
+                long delay = skew > 0 ? random.nextInt(skew + 1) : 0;
+                slots.add(new Slot(position + delay, sequence++, CollectorFixture.message(configuration, key, v)));
+            }
+            position += values;
+        }
+        slots.sort(Comparator.<Slot>comparingLong(slot -> slot.position).thenComparingLong(slot -> slot.sequence));
+
+        List<Message> generated = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            generated.add(slot.message);
+        }
+        return generated;
+    }
+
+    private int nextKey(Random random, double[] cdf) {
+        if (cdf == null) {
+            return random.nextInt(keys);
+        }
+        double sample = random.nextDouble();
+        int low = 0;
+        int high = cdf.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cdf[middle] < sample) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static double[] zipf(int keys, double exponent) {
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int k = 0; k < keys; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < keys; k++) {
+            cdf[k] /= sum;
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import de.netuse.graylog.context_collector.config.PluginConfigurationV2;
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+@desc Full processing of one message by the ContextCollectorProcessor, against the InMemoryCollectionItemStore.
+The messages carry one value field each, so every item is created by its first message and completes with its last one.
+The queue is drained by a consumer thread, so completed items take the same path as in production.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateFromMessageBenchmark {
+    private static final int MESSAGES = 4096;
+
+    @Param({"1", "10", "100"})
+    public int configurations;
+
+    @Param({"1", "3"})
+    public int keyFields;
+
+    @Param({"2", "8"})
+    public int valueFields;
+
+    @Param({"READ_MODIFY_WRITE", "ATOMIC", "WRITE_BEHIND"})
+    public UpdateMode updateMode;
+
+    private ContextCollectorProcessor processor;
+    private Thread consumer;
+    private Message[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<CollectionConfiguration> generated = CollectorFixture.configurations(configurations, keyFields, valueFields, 60);
+        PluginConfigurationV2 settings = CollectorFixture.settings(generated, updateMode, IdScheme.COMPACT);
+        CollectorFixture.LocalCommunicationService communicationService = new CollectorFixture.LocalCommunicationService(settings);
+        processor = CollectorFixture.processor(new InMemoryCollectionItemStore(), communicationService,
+                CollectorFixture.registry(settings), "perf-node");
+        consumer = CollectorFixture.startConsumer(communicationService.getQueue(), item -> { });
+
+        messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            int key = i / valueFields;
+            messages[i] = CollectorFixture.message(generated.get(key % configurations), "key-" + key, i % valueFields);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.flush();
+        consumer.interrupt();
+    }
+
+    @Benchmark
+    public void updateFromMessage() {
+        next = (next + 1) % MESSAGES;
+        processor.processMessage(messages[next]);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CollectionItemJournalTest {
+    private static final int SEGMENT_SIZE = CollectionItemJournal.MIN_SEGMENT_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysItemsThatWereNotAcknowledged() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CollectionItemJournal journal = open(directory, 4);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(journal.append(item(i)));
+        }
+        List<CollectionItem> read = new ArrayList<>();
+        assertEquals(2, journal.read(read, 2, age -> { }));
+        journal.acknowledge();
+        journal.close();
+
+        CollectionItemJournal reopened = open(directory, 4);
+        assertEquals(1, reopened.pending());
+        read.clear();
+        assertEquals(1, reopened.read(read, 10, age -> { }));
+        assertEquals("item-2", read.get(0).id());
+    }
+
+    @Test
+    public void replaysReadItemsWithoutAcknowledge() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CollectionItemJournal journal = open(directory, 4);
+        journal.append(item(0));
+        journal.append(item(1));
+        journal.read(new ArrayList<>(), 10, age -> { });
+        journal.close();
+
+        assertEquals(2, open(directory, 4).pending());
+    }
+
+    @Test
+    public void keepsTheSnapshotFlag() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CollectionItemJournal journal = open(directory, 4);
+        journal.append(item(0).toBuilder().snapshot(true).build());
+        journal.append(item(1));
+        journal.close();
+
+        List<CollectionItem> read = new ArrayList<>();
+        assertEquals(2, open(directory, 4).read(read, 10, age -> { }));
+        assertTrue(read.get(0).snapshot());
+        assertFalse(read.get(1).snapshot());
+    }
+
+    @Test
+    public void stopsReplayAtTornRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CollectionItemJournal journal = open(directory, 4);
+        journal.append(item(0));
+        journal.append(item(1));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(segments(directory).get(0).toFile(), "rw")) {
+            int second = CollectionItemJournal.HEADER_BYTES + file.readInt();
+            file.seek(second + CollectionItemJournal.HEADER_BYTES);
+            int payload = file.read();
+            file.seek(second + CollectionItemJournal.HEADER_BYTES);
+            file.write(payload ^ 0xff);
+        }
+
+        CollectionItemJournal reopened = open(directory, 4);
+        assertEquals(1, reopened.pending());
+        // The torn record is overwritten by the next append.
+        assertTrue(reopened.append(item(2)));
+        List<CollectionItem> read = new ArrayList<>();
+        reopened.read(read, 10, age -> { });
+        assertEquals("item-0", read.get(0).id());
+        assertEquals("item-2", read.get(1).id());
+    }
+
+    @Test
+    public void rotatesSegmentsAndRemovesAcknowledgedOnes() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CollectionItemJournal journal = open(directory, 8);
+        int appended = 0;
+        while (segments(directory).size() < 3) {
+            assertTrue(journal.append(item(appended++)));
+        }
+
+        List<CollectionItem> read = new ArrayList<>();
+        assertEquals(appended, journal.read(read, appended, age -> { }));
+        for (int i = 0; i < appended; i++) {
+            assertEquals("item-" + i, read.get(i).id());
+        }
+        journal.acknowledge();
+        assertEquals(1, segments(directory).size());
+    }
+
+    @Test
+    public void refusesItemsWhenFull() throws IOException {
+        CollectionItemJournal journal = open(folder.getRoot().toPath(), 2);
+        int appended = 0;
+        while (journal.append(item(appended))) {
+            appended++;
+        }
+        assertEquals(appended, journal.pending());
+        assertEquals(2, segments(folder.getRoot().toPath()).size());
+    }
+
+    @Test
+    public void refusesItemsAfterClose() throws IOException {
+        CollectionItemJournal journal = open(folder.getRoot().toPath(), 4);
+        journal.append(item(0));
+        journal.close();
+
+        assertFalse(journal.append(item(1)));
+        assertEquals(0, journal.pending());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSegmentsLargerThanAMapping() {
+        new CollectionItemJournal(folder.getRoot().toPath(), 2048L * 1024 * 1024, 4, new ObjectMapper());
+    }
+
+    private static CollectionItemJournal open(Path directory, int maxSegments) throws IOException {
+        CollectionItemJournal journal = new CollectionItemJournal(directory, SEGMENT_SIZE, maxSegments, new ObjectMapper());
+        journal.open();
+        return journal;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.journal")) {
+            files.forEach(segments::add);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static CollectionItem item(int number) {
+        return CollectionItem.create("item-" + number, "sessions", 100, Collections.singletonMap("user", "user-" + number),
+                10, 20, true);
+    }
+}
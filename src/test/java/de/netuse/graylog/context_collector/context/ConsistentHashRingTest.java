@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+    private final ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node-a", "node-b", "node-c"));
+
+    @Test
+    public void placesCompactIdsByTheirDigest() {
+        String id = compactId(1);
+        byte[] digest = ((Binary) CollectionIds.toBson(id)).getData();
+
+        assertEquals(ByteBuffer.wrap(digest).getLong(), ConsistentHashRing.position(id));
+    }
+
+    @Test
+    public void placesHexIdsByTheirDigest() {
+        String id = CollectionIds.sha256Hex("sessions", new String[]{"user"}, new Object[]{"user-1"});
+
+        assertEquals(Long.parseUnsignedLong(id.substring(0, 16), 16), ConsistentHashRing.position(id));
+    }
+
+    @Test
+    public void spreadsCompactIdsOverAllNodes() {
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            owned.merge(ring.owner(compactId(i)), 1, Integer::sum);
+        }
+
+        assertEquals(3, owned.size());
+        for (int count : owned.values()) {
+            assertTrue("uneven share " + owned, count > 500);
+        }
+    }
+
+    @Test
+    public void movesOnlyTheIdsOfALeavingNode() {
+        ConsistentHashRing smaller = new ConsistentHashRing(Arrays.asList("node-a", "node-c"));
+        for (int i = 0; i < 1000; i++) {
+            String id = compactId(i);
+            String owner = ring.owner(id);
+            if (!owner.equals("node-b")) {
+                assertEquals(owner, smaller.owner(id));
+            }
+        }
+    }
+
+    private static String compactId(int number) {
+        return CollectionIds.compact("sessions", new String[]{"user"}, new Object[]{"user-" + number});
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) NetUSE AG - All rights reserved
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Server Side Public License, version 1,
+ * as published by MongoDB, Inc.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * Server Side Public License for more details.
+ *
+ * You should have received a copy of the Server Side Public License
+ * along with this program. If not, see
+ * <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+
+package de.netuse.graylog.context_collector.context;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalTimingWheelTest {
+    // Ticks of 10 ms and 8 buckets, the first wheel covers 80 ms, the first overflow wheel 640 ms.
+    private final HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(10, 8, 0);
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void firesAtTheDeadlineNotBefore() {
+        wheel.schedule("a", 25);
+
+        advance(20);
+        advance(24);
+        assertTrue(fired.isEmpty());
+        advance(25);
+        assertEquals(Collections.singletonList("a"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void firesInDeadlineOrderWithinTheFirstWheel() {
+        wheel.schedule("c", 30);
+        wheel.schedule("a", 10);
+        wheel.schedule("b", 20);
+
+        advance(70);
+        assertEquals(Arrays.asList("a", "b", "c"), fired);
+    }
+
+    @Test
+    public void firesPassedDeadlinesOnTheNextAdvance() {
+        advance(100);
+        wheel.schedule("late", 95);
+
+        advance(100);
+        assertEquals(Collections.singletonList("late"), fired);
+    }
+
+    @Test
+    public void cascadesFromOverflowWheelsTickByTick() {
+        wheel.schedule("overflow", 500);
+        wheel.schedule("second-overflow", 5000);
+
+        for (long now = 0; now < 500; now += 5) {
+            advance(now);
+        }
+        assertTrue(fired.isEmpty());
+        advance(500);
+        assertEquals(Collections.singletonList("overflow"), fired);
+
+        for (long now = 500; now < 5000; now += 5) {
+            advance(now);
+        }
+        assertEquals(1, fired.size());
+        advance(5000);
+        assertEquals(Arrays.asList("overflow", "second-overflow"), fired);
+    }
+
+    @Test
+    public void cascadesFromOverflowWheelsInOneJump() {
+        wheel.schedule("overflow", 500);
+
+        advance(499);
+        assertTrue(fired.isEmpty());
+        advance(500);
+        assertEquals(Collections.singletonList("overflow"), fired);
+    }
+
+    @Test
+    public void cancelledTimeoutsDoNotFire() {
+        HierarchicalTimingWheel.Timeout<String> near = wheel.schedule("near", 30);
+        HierarchicalTimingWheel.Timeout<String> far = wheel.schedule("far", 500);
+        wheel.schedule("kept", 40);
+
+        wheel.cancel(near);
+        wheel.cancel(far);
+        assertEquals(1, wheel.size());
+
+        advance(1000);
+        assertEquals(Collections.singletonList("kept"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancellingAFiredTimeoutChangesNothing() {
+        HierarchicalTimingWheel.Timeout<String> timeout = wheel.schedule("a", 10);
+        wheel.schedule("b", 50);
+        advance(10);
+
+        wheel.cancel(timeout);
+        wheel.cancel(null);
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void wrapsAroundAfterJumpsLongerThanTheWheel() {
+        wheel.schedule("a", 30);
+        wheel.schedule("b", 150);
+
+        advance(1000);
+        assertEquals(Arrays.asList("a", "b"), fired);
+
+        // The bucket of 1035 was used by earlier rotations, the timeout must wait for its own.
+        wheel.schedule("c", 1035);
+        wheel.schedule("d", 1115);
+        advance(1034);
+        assertEquals(2, fired.size());
+        advance(1035);
+        assertEquals(Arrays.asList("a", "b", "c"), fired);
+        advance(1114);
+        assertEquals(3, fired.size());
+        advance(1115);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), fired);
+    }
+
+    private void advance(long now) {
+        wheel.advance(now, fired::add);
+    }
+}
@@ -43,6 +43,14 @@ class EditContextCollectionModal extends React.Component {
     key_fields: PropTypes.string,
     value_fields: PropTypes.array,
     timeout: PropTypes.int,
+    timeout_millis: PropTypes.int,
+    aggregations: PropTypes.object,
+    max_open_items: PropTypes.int,
+    open_items_policy: PropTypes.string,
+    completion_rules: PropTypes.array,
+    max_lifetime: PropTypes.int,
+    snapshot_interval: PropTypes.int,
+    snapshot_reset: PropTypes.bool,
     drop_incomplete: PropTypes.bool,
     create: PropTypes.bool,
     update: PropTypes.func.isRequired,
@@ -55,6 +63,14 @@ class EditContextCollectionModal extends React.Component {
     key_fields: [],
     value_fields: [],
     timeout: 10,
+    timeout_millis: 0,
+    aggregations: {},
+    max_open_items: 0,
+    open_items_policy: 'refuse',
+    completion_rules: [],
+    max_lifetime: 0,
+    snapshot_interval: 0,
+    snapshot_reset: false,
     create: false,
     drop_incomplete: false,
   };
@@ -66,7 +82,15 @@ class EditContextCollectionModal extends React.Component {
         type: props.type,
         key_fields: props.key_fields,
         timeout: props.timeout,
+        timeout_millis: props.timeout_millis,
         value_fields: props.value_fields,
+        aggregations: props.aggregations,
+        max_open_items: props.max_open_items,
+        open_items_policy: props.open_items_policy,
+        completion_rules: props.completion_rules.map((rule) => ({ ...rule, fields_text: rule.fields.join(', ') })),
+        max_lifetime: props.max_lifetime,
+        snapshot_interval: props.snapshot_interval,
+        snapshot_reset: props.snapshot_reset,
         drop_incomplete: props.drop_incomplete,
         enabled: true,
 	showModal: false,
@@ -82,6 +106,35 @@ class EditContextCollectionModal extends React.Component {
           this.setState(update);
     };
 
+    _onChangeAggregation = (field) => {
+      return (e) => {
+          let aggregations = { ...this.state.aggregations };
+          aggregations[field] = FormUtils.getValueFromInput(e.target);
+          this.setState({aggregations: aggregations});
+      }
+    }
+
+    _onChangeCompletionRule = (idx, field) => {
+      return (e) => {
+          let rules = this.state.completion_rules.slice();
+          let value = FormUtils.getValueFromInput(e.target);
+          rules[idx] = { ...rules[idx], [field]: value };
+          this.setState({completion_rules: rules});
+      }
+    }
+
+    _addCompletionRule = () => {
+          let rules = this.state.completion_rules.concat([{ type: 'field_present', fields_text: '', value: null, count: 1 }]);
+          this.setState({completion_rules: rules});
+    };
+
+    _removeCompletionRule = (idx) => {
+      return () => {
+          let rules = this.state.completion_rules.filter((rule, i) => i !== idx);
+          this.setState({completion_rules: rules});
+      }
+    }
+
     _onChangeKeyFields = (value) => {
           let update = {key_fields: value};
           this.setState(update);
@@ -99,10 +152,31 @@ class EditContextCollectionModal extends React.Component {
     this.setState({showModal: false});
   };
 
+  _splitFields = (text) => {
+    return text.split(',').map((name) => name.trim()).filter((name) => name.length > 0);
+  };
+
+  // Returns an error for fields the collection does not collect, the server rejects those rules.
+  _completionRuleError = (rule) => {
+    const fields = this._splitFields(rule.fields_text);
+    if (fields.length === 0) {
+      return 'At least one field is required';
+    }
+    const unknown = fields.filter((name) => !this.state.key_fields.includes(name) && !this.state.value_fields.includes(name));
+    if (unknown.length > 0) {
+      return `Not a key or value field: ${unknown.join(', ')}`;
+    }
+    return null;
+  };
+
   _onConfirm = () => {
+    if (this.state.completion_rules.some((rule) => this._completionRuleError(rule) !== null)) {
+      return;
+    }
     this.setState({showModal: false});
-    let tmp = this.state
+    let tmp = { ...this.state }
     delete tmp['showModal']
+    tmp.completion_rules = this.state.completion_rules.map(({ fields_text, ...rule }) => ({ ...rule, fields: this._splitFields(fields_text) }));
     this.props.update(tmp);
   };
 
@@ -162,6 +236,13 @@ class EditContextCollectionModal extends React.Component {
                    value={this.state.timeout}
                    required />
 
+            <Input type="text"
+                   id="timeout_millis"
+                   label="Timeout (ms)"
+                   help="Optional, overrides the timeout in milliseconds for items held in memory, they expire within 50 ms of it. 0 uses the timeout in seconds."
+                   onChange={this._onChangeEvent('timeout_millis')}
+                   value={this.state.timeout_millis} />
+
             <label htmlFor="input-value-fields">Value fields</label>
             <SortableSelect options={availableSortedFields}
                             onChange={this._onChangeValueFields}
@@ -170,6 +251,101 @@ class EditContextCollectionModal extends React.Component {
                             inputId="input-value-fields"
                             allowOptionCreation={false} />
 
+            {this.state.value_fields.map((field) => (
+              <Input type="select"
+                     key={field}
+                     id={`aggregation_${field}`}
+                     label={`Aggregation of ${field}`}
+                     onChange={this._onChangeAggregation(field)}
+                     value={this.state.aggregations[field] || 'last'}>
+                <option value="last">Last value</option>
+                <option value="first">First value</option>
+                <option value="count">Count</option>
+                <option value="sum">Sum</option>
+                <option value="min">Minimum</option>
+                <option value="max">Maximum</option>
+              </Input>
+            ))}
+
+            <label>Completion rules</label>
+            <p className="help-block">Optional, an item matching any rule is emitted right away, even if value fields are missing.</p>
+            {this.state.completion_rules.map((rule, idx) => {
+              const error = this._completionRuleError(rule);
+              return (
+              <Panel key={idx}>
+                <Input type="select"
+                       id={`completion_rule_type_${idx}`}
+                       label="Complete when"
+                       onChange={this._onChangeCompletionRule(idx, 'type')}
+                       value={rule.type}>
+                  <option value="field_present">one of the fields is present</option>
+                  <option value="field_equals">one of the fields equals the value</option>
+                  <option value="min_fields">at least count of the fields are present</option>
+                </Input>
+                <Input type="text"
+                       id={`completion_rule_fields_${idx}`}
+                       label="Fields"
+                       help={error || 'Comma separated key or value field names'}
+                       bsStyle={error ? 'error' : null}
+                       onChange={this._onChangeCompletionRule(idx, 'fields_text')}
+                       value={rule.fields_text} />
+                {rule.type === 'field_equals' && (
+                  <Input type="text"
+                         id={`completion_rule_value_${idx}`}
+                         label="Value"
+                         onChange={this._onChangeCompletionRule(idx, 'value')}
+                         value={rule.value || ''} />
+                )}
+                {rule.type === 'min_fields' && (
+                  <Input type="text"
+                         id={`completion_rule_count_${idx}`}
+                         label="Count"
+                         onChange={this._onChangeCompletionRule(idx, 'count')}
+                         value={rule.count} />
+                )}
+                <Button bsSize="xs" bsStyle="danger" onClick={this._removeCompletionRule(idx)}>Remove rule</Button>
+              </Panel>
+              );
+            })}
+            <Button bsSize="xs" onClick={this._addCompletionRule} style={{ marginBottom: 15 }}>Add completion rule</Button>
+
+            <Input type="text"
+                   id="max_lifetime"
+                   label="Maximum lifetime"
+                   help="Optional, seconds after the first message at which an item is emitted even if it keeps receiving messages. 0 is unlimited."
+                   onChange={this._onChangeEvent('max_lifetime')}
+                   value={this.state.max_lifetime} />
+
+            <Input type="text"
+                   id="snapshot_interval"
+                   label="Snapshot interval"
+                   help="Optional, seconds between intermediate emissions of open items. 0 disables snapshots."
+                   onChange={this._onChangeEvent('snapshot_interval')}
+                   value={this.state.snapshot_interval} />
+
+            <Input type="checkbox"
+                   id="snapshot_reset"
+                   label="Start a new item after each snapshot"
+                   onChange={this._onChangeEvent('snapshot_reset')}
+                   defaultChecked={this.state.snapshot_reset} />
+
+            <Input type="text"
+                   id="max_open_items"
+                   label="Maximum open items"
+                   help="Optional, limits the number of open items of this collection. 0 is unlimited."
+                   onChange={this._onChangeEvent('max_open_items')}
+                   value={this.state.max_open_items} />
+
+            <Input type="select"
+                   id="open_items_policy"
+                   label="At the limit"
+                   onChange={this._onChangeEvent('open_items_policy')}
+                   value={this.state.open_items_policy}>
+              <option value="refuse">Refuse new items</option>
+              <option value="evict_oldest">Evict the oldest items</option>
+              <option value="evict_least_recent">Evict the least recently updated items</option>
+            </Input>
+
              <Input type="checkbox"
                 id="drop_incomplete"
                 label="Drop incomplete Collections on timeout"
@@ -38,13 +38,38 @@ const getDefaultContextCollection = () => {
              key_fields: [],
              value_fields: [],
              timeout: 10,
+             timeout_millis: 0,
+             aggregations: {},
+             max_open_items: 0,
+             open_items_policy: 'refuse',
+             completion_rules: [],
+             max_lifetime: 0,
+             snapshot_interval: 0,
+             snapshot_reset: false,
              drop_incomplete:false,
              enabled: true,
            };
 };
 
 const CONTEXT_COLLECTOR_CONFIG = "de.netuse.graylog.context_collector.config.PluginConfigurationV2";
-const DefaultConfig = {collection_configurations: [], collection_configurations_path: "/etc/graylog/context_collector.json", load_configuration_from_file: false};
+const DefaultConfig = {
+  collection_configurations: [],
+  collection_configurations_path: "/etc/graylog/context_collector.json",
+  load_configuration_from_file: false,
+  update_mode: "read_modify_write",
+  write_behind_flush_interval: 1000,
+  write_behind_buffer_size: 10000,
+  id_scheme: "sha256_hex",
+  cluster_mode: false,
+  queue_capacity: 1024,
+  queue_overflow_policy: "write_back",
+  queue_offer_timeout: 1000,
+  journal_enabled: false,
+  journal_path: "/var/lib/graylog-server/context-collector-journal",
+  journal_segment_size: 64,
+  journal_max_segments: 16,
+  processing_lanes: 1,
+};
 
 const NetuseContextCollectorConfig = (props) => {
  const { configuration } = useStore(ConfigurationsStore);
@@ -56,7 +81,7 @@ const NetuseContextCollectorConfig = (props) => {
 
   useEffect(() => {
      if (propConfig) {
-     	setConfig(propConfig);
+     	setConfig({ ...DefaultConfig, ...propConfig });
      } 
   }, [propConfig]);
 
@@ -125,6 +150,14 @@ const NetuseContextCollectorConfig = (props) => {
                                        key_fields={entity.key_fields}
                                        value_fields={entity.value_fields}
                                        timeout={entity.timeout}
+                                       timeout_millis={entity.timeout_millis}
+                                       aggregations={entity.aggregations}
+                                       max_open_items={entity.max_open_items}
+                                       open_items_policy={entity.open_items_policy}
+                                       completion_rules={entity.completion_rules}
+                                       max_lifetime={entity.max_lifetime}
+                                       snapshot_interval={entity.snapshot_interval}
+                                       snapshot_reset={entity.snapshot_reset}
                                        drop_incomplete={entity.drop_incomplete}
                                        create={false}
                                        update={_onContextCollectionUpdate(idx)}
@@ -270,6 +303,135 @@ const NetuseContextCollectorConfig = (props) => {
                     disabled={!config.load_configuration_from_file}
                     />
 
+            <Input type="select"
+                    id="update_mode"
+                    label="Update Mode"
+                    help="How collection items are written to the database. Write-behind keeps open items in memory and flushes them in batches."
+                    name="update_mode"
+                    value={config.update_mode}
+                    onChange={_onUpdate('update_mode')}>
+              <option value="read_modify_write">Read-modify-write</option>
+              <option value="atomic">Atomic upsert</option>
+              <option value="write_behind">Write-behind</option>
+            </Input>
+
+            <Input type="text"
+                    id="processing_lanes"
+                    label="Processing Lanes"
+                    help="Read-modify-write only: messages of a batch are processed concurrently on this many lanes, messages of one collection item stay in order on one lane."
+                    name="processing_lanes"
+                    value={config.processing_lanes}
+                    onChange={_onUpdate('processing_lanes')}
+                    disabled={config.update_mode !== 'read_modify_write' || config.cluster_mode}
+                    />
+
+            <Input type="text"
+                    id="write_behind_flush_interval"
+                    label="Write-behind Flush Interval (ms)"
+                    help="How often buffered items are written to the database. Keep it well below the shortest collection timeout."
+                    name="write_behind_flush_interval"
+                    value={config.write_behind_flush_interval}
+                    onChange={_onUpdate('write_behind_flush_interval')}
+                    disabled={config.update_mode !== 'write_behind' && !config.cluster_mode}
+                    />
+
+            <Input type="text"
+                    id="write_behind_buffer_size"
+                    label="Write-behind Buffer Size"
+                    help="Maximum number of open items kept in memory per node"
+                    name="write_behind_buffer_size"
+                    value={config.write_behind_buffer_size}
+                    onChange={_onUpdate('write_behind_buffer_size')}
+                    disabled={config.update_mode !== 'write_behind' && !config.cluster_mode}
+                    />
+
+            <Input type="select"
+                    id="id_scheme"
+                    label="Collection Id Scheme"
+                    help="Compact ids are stored as 16 byte binary ids. Existing items are migrated by the timeout check."
+                    name="id_scheme"
+                    value={config.id_scheme}
+                    onChange={_onUpdate('id_scheme')}>
+              <option value="sha256_hex">SHA256 hex string</option>
+              <option value="compact">Compact binary</option>
+            </Input>
+
+            <Input id="cluster_mode"
+                   name="cluster_mode"
+                   type="checkbox"
+                   label="Cluster Mode"
+                   help="Each node owns a share of the collection items and keeps them in its write-behind buffer, other nodes write their fields to the database for the owner"
+                   checked={config.cluster_mode}
+                   onChange={_onCheckboxClick('cluster_mode')} />
+
+            <Input type="text"
+                    id="queue_capacity"
+                    label="Queue Capacity"
+                    help="Number of finished collection items the output can hand to the input per node before the overflow policy applies"
+                    name="queue_capacity"
+                    value={config.queue_capacity}
+                    onChange={_onUpdate('queue_capacity')}
+                    />
+
+            <Input type="select"
+                    id="queue_overflow_policy"
+                    label="Queue Overflow Policy"
+                    help="What happens to finished collection items when the queue is full"
+                    name="queue_overflow_policy"
+                    value={config.queue_overflow_policy}
+                    onChange={_onUpdate('queue_overflow_policy')}>
+              <option value="write_back">Write back to the database</option>
+              <option value="block">Block, then write back</option>
+              <option value="drop">Drop</option>
+            </Input>
+
+            <Input type="text"
+                    id="queue_offer_timeout"
+                    label="Queue Block Timeout (ms)"
+                    help="How long to wait for free space before writing the item back to the database"
+                    name="queue_offer_timeout"
+                    value={config.queue_offer_timeout}
+                    onChange={_onUpdate('queue_offer_timeout')}
+                    disabled={config.queue_overflow_policy !== 'block'}
+                    />
+
+            <Input id="journal_enabled"
+                   name="journal_enabled"
+                   type="checkbox"
+                   label="Journal"
+                   help="Keep finished collection items in a journal on disk instead of memory, so they survive restarts. Journal settings apply after a restart."
+                   checked={config.journal_enabled}
+                   onChange={_onCheckboxClick('journal_enabled')} />
+
+            <Input type="text"
+                    id="journal_path"
+                    label="Journal Directory"
+                    name="journal_path"
+                    value={config.journal_path}
+                    onChange={_onUpdate('journal_path')}
+                    disabled={!config.journal_enabled}
+                    />
+
+            <Input type="text"
+                    id="journal_segment_size"
+                    label="Journal Segment Size (MB)"
+                    help="Between 1 and 1024 MB, segments are memory-mapped"
+                    name="journal_segment_size"
+                    value={config.journal_segment_size}
+                    onChange={_onUpdate('journal_segment_size')}
+                    disabled={!config.journal_enabled}
+                    />
+
+            <Input type="text"
+                    id="journal_max_segments"
+                    label="Journal Maximum Segments"
+                    help="The journal is full at this number of segments, the overflow policy applies then"
+                    name="journal_max_segments"
+                    value={config.journal_max_segments}
+                    onChange={_onUpdate('journal_max_segments')}
+                    disabled={!config.journal_enabled}
+                    />
+
           </fieldset>
         </BootstrapModalForm>
       </div>